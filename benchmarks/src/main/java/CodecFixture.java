@@ -0,0 +1,94 @@
+import benchmarks.CodecBenchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// See CodecBenchmark and ObjectStreamBenchmark.
+public class CodecFixture implements CodecBenchmark.Fixture {
+    private WireCodec codec;
+    private Object payload;
+    private byte[] frame;
+    private ObjectOutputStream objectStream; // One per client in the old ClientObserver, kept open for his whole session.
+
+    @Override
+    public void setUp(String codecName, String payloadName) throws IOException {
+        codec = codecName.equals("java") ? WireCodec.JAVA : WireCodec.BINARY;
+        payload = payload(payloadName);
+        frame = codec.encodeFrame(payload);
+        objectStream = new ObjectOutputStream(new OutputStream() { // A socket that takes everything right away.
+            @Override
+            public void write(int b){
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len){
+            }
+        });
+    }
+
+    @Override
+    public byte[] encode() throws IOException {
+        return codec.encodeFrame(payload);
+    }
+
+    @Override
+    public Object decode() throws IOException {
+        return codec.decode(frame, 4, frame.length - 4); // Past the length prefix, as Frames.read does.
+    }
+
+    @Override
+    public Object writeToObjectStream() throws IOException {
+        objectStream.writeObject(payload);
+        objectStream.reset(); // Or the next write of a changed object sends a reference to the stale one.
+        objectStream.flush();
+        return objectStream;
+    }
+
+    static Object payload(String name){
+        Random random = new Random(42);
+        switch(name){
+            case "text":
+                return message(random, 1, 2, null);
+            case "attachments":
+                List<Attachment> attachments = new ArrayList<Attachment>();
+                for(int i = 0; i < 3; i++){
+                    byte[] bytes = new byte[1000];
+                    random.nextBytes(bytes);
+                    attachments.add(new Attachment(Attachment.hash(bytes), 200000, "jpg"));
+                }
+                return message(random, 1, 2, attachments);
+            case "image":
+                byte[] image = new byte[100 * 1024];
+                random.nextBytes(image);
+                return new AttachmentData(Attachment.hash(image), image);
+            case "group":
+                List<Integer> members = new ArrayList<Integer>();
+                for(int i = 0; i < 50; i++){
+                    members.add(i);
+                }
+                Group group = new Group(members, "Benchmark group");
+                group.setGroupID(1);
+                for(int i = 0; i < 20; i++){
+                    group.addMessage(message(random, 1, i, null));
+                }
+                return group;
+            default:
+                throw new IllegalArgumentException("No payload " + name);
+        }
+    }
+
+    private static Message message(Random random, int groupID, int senderID, List<Attachment> attachments){
+        char[] text = new char[100];
+        for(int i = 0; i < text.length; i++){
+            text[i] = (char) ('a' + random.nextInt(26));
+        }
+        Message message = new Message(groupID, senderID, new String(text), attachments);
+        message.setSequence(random.nextInt(1000000));
+        return message;
+    }
+}
@@ -0,0 +1,60 @@
+import benchmarks.FanOutBenchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Observable;
+import java.util.Observer;
+
+// See FanOutBenchmark. The server is a real ServerMain with its log and attachments in a temporary directory, but it
+// never listens: its observers are added directly.
+public class FanOutFixture implements FanOutBenchmark.Fixture {
+    private File directory;
+    private ServerMain server;
+    private Message message;
+
+    @Override
+    public void setUp(int observers, String codecName) throws IOException {
+        WireCodec codec = codecName.equals("java") ? WireCodec.JAVA : WireCodec.BINARY;
+        directory = Files.createTempDirectory("fan-out").toFile();
+        System.setProperty("chat.logDir", new File(directory, "messages").getPath());
+        System.setProperty("chat.attachmentDir", new File(directory, "attachments").getPath());
+        server = new ServerMain(ServerConfig.fromProperties());
+        for(int i = 0; i < observers; i++){
+            server.addObserver(new QueueingObserver(codec));
+        }
+        message = (Message) CodecFixture.payload("text");
+    }
+
+    @Override
+    public void broadcast(){
+        server.notifyObservers(message);
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        server.deleteObservers();
+        Files.walk(directory.toPath()).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+
+    // Does what a connection's update() does, then what his writer does once the frame is written.
+    static class QueueingObserver implements Observer {
+        private WireCodec codec;
+        private OutboundQueue outboundQueue;
+
+        QueueingObserver(WireCodec codec){
+            this.codec = codec;
+            this.outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+        }
+
+        @Override
+        public void update(Observable o, Object arg) {
+            try {
+                outboundQueue.offer(((Broadcast) arg).frameFor(codec));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            outboundQueue.poll().release();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import benchmarks.GroupListBenchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// See GroupListBenchmark. A ClientMain without window or connection, in the given number of groups, looked up and
+// updated in an order that jumps around the list.
+public class GroupListFixture implements GroupListBenchmark.Fixture {
+    private static final int CLIENT_ID = 0;
+
+    private ClientMain client;
+    private int groupCount;
+    private int next;
+
+    @Override
+    public void setUp(int groups){
+        client = new ClientMain(CLIENT_ID);
+        groupCount = groups;
+        for(int i = 0; i < groups; i++){
+            Group group = new Group(new ArrayList<Integer>(Arrays.asList(CLIENT_ID, i + 1, i + 2)), "Group " + i);
+            group.setGroupID(i);
+            client.getGroups().add(group);
+        }
+    }
+
+    private int nextGroupID(){
+        next = (next + 7919) % groupCount; // A prime step, so every group comes up and neighbours aren't looked up in a row.
+        return next;
+    }
+
+    @Override
+    public Object getGroupWithID(){
+        return client.getGroupWithID(nextGroupID());
+    }
+
+    @Override
+    public void updateGroup(){
+        int groupID = nextGroupID();
+        Group group = new Group(new ArrayList<Integer>(Arrays.asList(CLIENT_ID, groupID + 1, groupID + 2)), "Renamed " + groupID);
+        group.setGroupID(groupID);
+        client.updateGroupList(group);
+    }
+
+    @Override
+    public void applyDelta(){
+        int groupID = nextGroupID();
+        List<Integer> ids = Collections.singletonList(groupID + 3);
+        client.updateGroupList(new GroupDelta(groupID, ids, Collections.<Integer>emptyList(), null)); // Adds him,
+        client.updateGroupList(new GroupDelta(groupID, Collections.<Integer>emptyList(), ids, null)); // then removes him, so the group stays the same size.
+    }
+}
@@ -0,0 +1,58 @@
+import benchmarks.ImageDecodeBenchmark;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// See ImageDecodeBenchmark. The image is a gradient with some noise and shapes on it, so it compresses about like a
+// photo or screenshot rather than like a flat color.
+public class ImageDecodeFixture implements ImageDecodeBenchmark.Fixture {
+    private byte[] bytes;
+    private String hash;
+    private ImageCache imageCache;
+
+    @Override
+    public void setUp(String size, String format) throws IOException {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                int noise = random.nextInt(16);
+                image.setRGB(x, y, ((x * 255 / width + noise) & 0xff) << 16 | ((y * 255 / height + noise) & 0xff) << 8 | (noise * 8));
+            }
+        }
+        Graphics2D graphics = image.createGraphics();
+        for(int i = 0; i < 50; i++){
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), random.nextInt(width / 4) + 1, random.nextInt(height / 4) + 1);
+        }
+        graphics.dispose();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, format, outputStream);
+        bytes = outputStream.toByteArray();
+        hash = Attachment.hash(bytes);
+        imageCache = new ImageCache(ImageCache.DEFAULT_MAX_BYTES);
+        imageCache.put(hash, (Image) decode());
+    }
+
+    // What View does for an image that isn't cached.
+    @Override
+    public Object decode() throws IOException {
+        BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(bytes));
+        return SwingFXUtils.toFXImage(bufferedImage, null);
+    }
+
+    @Override
+    public Object cached(){
+        return imageCache.get(hash);
+    }
+}
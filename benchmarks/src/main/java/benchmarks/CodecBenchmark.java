@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding one frame with each wire codec: what a broadcast pays once per codec in use, and what every
+// reader pays per frame. Payloads are a text message, a message referring to three images, the bytes of a 100 KB
+// image, and a 50 member group with 20 messages.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    public interface Fixture {
+        void setUp(String codec, String payload) throws Exception;
+        byte[] encode() throws Exception;
+        Object decode() throws Exception;
+        Object writeToObjectStream() throws Exception;
+    }
+
+    @Param({"binary", "java"})
+    public String codec;
+
+    @Param({"text", "attachments", "image", "group"})
+    public String payload;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("CodecFixture", Fixture.class);
+        fixture.setUp(codec, payload);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return fixture.encode();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return fixture.decode();
+    }
+}
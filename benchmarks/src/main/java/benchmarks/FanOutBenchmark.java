@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// One broadcast through ServerMain.notifyObservers to N connected clients, each of which does what a connection's
+// update() does (get the shared frame for its codec, queue it) and then has it taken off the queue as if his writer
+// kept up. The socket writes themselves aren't included.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    public interface Fixture {
+        void setUp(int observers, String codec) throws Exception;
+        void broadcast();
+        void tearDown() throws Exception;
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int observers;
+
+    @Param({"binary", "java"})
+    public String codec;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("FanOutFixture", Fixture.class);
+        fixture.setUp(observers, codec);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void broadcast(){
+        fixture.broadcast();
+    }
+}
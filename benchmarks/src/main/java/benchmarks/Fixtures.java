@@ -0,0 +1,12 @@
+package benchmarks;
+
+// The chat classes are in the default package, which Java can't import from and JMH won't generate benchmarks in. So
+// each benchmark here drives a fixture that lives in the default package next to them (one directory up), through an
+// interface declared by the benchmark, and finds it by name.
+final class Fixtures {
+    private Fixtures(){}
+
+    static <T> T create(String className, Class<T> type) throws ReflectiveOperationException {
+        return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The client's group list for a user in many groups: finding a group by ID, and applying a Group or GroupDelta from
+// the server to it (ClientMain.getGroupWithID and updateGroupList). Their debug logging is off, as it is by default,
+// so it only costs its level check.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupListBenchmark {
+    public interface Fixture {
+        void setUp(int groups) throws Exception;
+        Object getGroupWithID();
+        void updateGroup();
+        void applyDelta();
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int groups;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("GroupListFixture", Fixture.class);
+        fixture.setUp(groups);
+    }
+
+    @Benchmark
+    public Object getGroupWithID(){
+        return fixture.getGroupWithID();
+    }
+
+    @Benchmark
+    public void updateGroup(){
+        fixture.updateGroup();
+    }
+
+    @Benchmark
+    public void applyDelta(){
+        fixture.applyDelta();
+    }
+}
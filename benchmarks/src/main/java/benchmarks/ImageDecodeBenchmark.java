@@ -0,0 +1,45 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Showing an image in the message list: the ImageIO decode and SwingFXUtils conversion View does for an image that
+// isn't in its ImageCache, against the cache hit it does otherwise.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageDecodeBenchmark {
+    public interface Fixture {
+        void setUp(String size, String format) throws Exception;
+        Object decode() throws Exception;
+        Object cached();
+    }
+
+    @Param({"640x480", "2048x1536"})
+    public String size;
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("ImageDecodeFixture", Fixture.class);
+        fixture.setUp(size, format);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return fixture.decode();
+    }
+
+    @Benchmark
+    public Object cached(){
+        return fixture.cached();
+    }
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The old way every ClientObserver sent an object: writeObject, reset() and flush on one long-lived
+// ObjectOutputStream per client, paid again for every recipient. Kept as the baseline the codecs in CodecBenchmark
+// replaced. Same payloads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectStreamBenchmark {
+    @Param({"text", "attachments", "image", "group"})
+    public String payload;
+
+    private CodecBenchmark.Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.create("CodecFixture", CodecBenchmark.Fixture.class);
+        fixture.setUp("java", payload);
+    }
+
+    @Benchmark
+    public Object writeWithReset() throws Exception {
+        return fixture.writeToObjectStream();
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Holds many idle clients open against a real server and checks that they don't cost a platform thread each, the
+// way new Thread(...) per client did. -Dchat.test.connections sets how many (default 1000). The full 10k needs
+// about 20k file descriptors in one JVM, since both ends of every connection are open here.
+public class ConnectionCountTest {
+    private static final int CONNECTIONS = Integer.getInteger("chat.test.connections", 1000);
+    private static final int MAX_EXTRA_THREADS = 64; // Accept loop, event loops, log writer and the like. Nothing per client.
+
+    @Test
+    public void virtualThreadsServeManyClients() throws Exception {
+        Assumptions.assumeTrue(Runtime.version().feature() >= 21, "Virtual threads need Java 21");
+        assertServesWithoutThreadPerClient("blocking");
+    }
+
+    @Test
+    public void nioServesManyClients() throws Exception {
+        assertServesWithoutThreadPerClient("nio");
+    }
+
+    private static void assertServesWithoutThreadPerClient(String engine) throws Exception {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount(); // Platform threads only.
+        int port = startServer(engine);
+        List<Socket> clients = new ArrayList<Socket>();
+        try {
+            for(int i = 0; i < CONNECTIONS; i++){
+                clients.add(connect(port));
+            }
+            int extraThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            assertTrue(extraThreads < MAX_EXTRA_THREADS, engine + " server started " + extraThreads + " platform threads for " + CONNECTIONS + " clients");
+            connect(port).close(); // Still accepting after all of them.
+        } finally {
+            for(Socket client : clients){
+                client.close();
+            }
+        }
+    }
+
+    // Starts a server on a free port, with its logs in a temporary directory, and returns the port.
+    private static int startServer(String engine) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        File directory = Files.createTempDirectory("chat-" + engine).toFile();
+        System.setProperty("chat.engine", engine);
+        System.setProperty("chat.port", Integer.toString(port));
+        System.setProperty("chat.logDir", new File(directory, "messages").getPath());
+        System.setProperty("chat.attachmentDir", new File(directory, "attachments").getPath());
+        ServerMain server = new ServerMain(ServerConfig.fromProperties());
+        CountDownLatch listening = new CountDownLatch(1);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve(listening::countDown);
+            } catch (IOException e) {
+                EventLog.error("Test server failed: {}", e);
+            }
+        }, engine + "-server");
+        serving.setDaemon(true);
+        serving.start();
+        assertTrue(listening.await(30, TimeUnit.SECONDS), engine + " server did not start listening");
+        return port;
+    }
+
+    // Connects a client and waits for its Welcome, so the server has really taken it on.
+    private static Socket connect(int port) throws Exception {
+        Socket socket = new Socket("localhost", port);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        WireCodec codec = WireCodec.negotiate(outputStream, inputStream, WireCodec.preferred());
+        Frames.write(outputStream, codec, new Hello(null));
+        outputStream.flush();
+        Object welcome = Frames.read(inputStream, codec);
+        assertEquals(Welcome.class, welcome.getClass());
+        return socket;
+    }
+}
@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Readers look keys up with optimistic reads while writers resize and churn the same stripe. A reader must never miss
+// a key that is there the whole time, and never see a value under the wrong key. Every key is picked from one stripe,
+// so readers and writers really do meet. -Dchat.test.stressMillis sets how long each run hammers the map (default 2000).
+public class IntMapStressTest {
+    private static final long STRESS_MILLIS = Long.getLong("chat.test.stressMillis", 2000);
+    private static final int STABLE_KEYS = 256; // Put before the readers start and never removed.
+    private static final int CHURNED_KEYS = 4096; // Put and removed over and over, so stripes resize and shift entries back.
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int[] KEYS = keysInOneStripe(STABLE_KEYS + CHURNED_KEYS + CHURNED_KEYS); // Stable, churned, then never put.
+
+    @Test
+    public void optimisticReadsSeeEveryStableKey() throws Exception {
+        long end = System.currentTimeMillis() + STRESS_MILLIS;
+        int rounds = 0;
+        while(System.currentTimeMillis() < end || rounds == 0){
+            stressOnce(Math.max(50, STRESS_MILLIS / 10)); // A fresh map each round, so resizes from the smallest size happen under load.
+            rounds++;
+        }
+    }
+
+    @Test
+    public void concurrentAddsAndRemovesKeepTheSetExact() throws Exception {
+        IntSet set = new IntSet();
+        int perThread = 20000;
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < WRITERS; t++){
+            int first = t * perThread;
+            threads.add(start("set-writer-" + t, failure, () -> {
+                for(int value = first; value < first + perThread; value++){
+                    assertTrue(set.add(value));
+                    assertTrue(set.contains(value));
+                }
+                for(int value = first; value < first + perThread; value += 2){ // Every other one goes again.
+                    assertTrue(set.remove(value));
+                    assertTrue(!set.contains(value));
+                }
+            }));
+        }
+        join(threads, failure);
+        assertEquals(WRITERS * perThread / 2, set.size());
+        List<Integer> values = set.toList();
+        assertEquals(WRITERS * perThread / 2, values.size());
+        for(int i = 0; i < values.size(); i++){
+            assertEquals(2 * i + 1, (int) values.get(i));
+        }
+    }
+
+    private static void stressOnce(long millis) throws Exception {
+        IntMap<Integer> map = new IntMap<Integer>();
+        for(int i = 0; i < STABLE_KEYS; i++){
+            map.put(KEYS[i], KEYS[i]);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < WRITERS; t++){
+            threads.add(start("map-writer-" + t, failure, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while(running.get()){
+                    int key = KEYS[STABLE_KEYS + random.nextInt(CHURNED_KEYS)];
+                    if(random.nextBoolean()){
+                        map.put(key, key);
+                    }else{
+                        map.remove(key);
+                    }
+                }
+            }));
+        }
+        for(int t = 0; t < READERS; t++){
+            threads.add(start("map-reader-" + t, failure, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while(running.get()){
+                    int stable = KEYS[random.nextInt(STABLE_KEYS)];
+                    assertEquals(Integer.valueOf(stable), map.get(stable), "Stable key missed");
+                    int churned = KEYS[STABLE_KEYS + random.nextInt(CHURNED_KEYS)];
+                    Integer value = map.get(churned);
+                    assertTrue(value == null || value == churned, "Key " + churned + " had value " + value);
+                    assertNull(map.get(KEYS[STABLE_KEYS + CHURNED_KEYS + random.nextInt(CHURNED_KEYS)]));
+                }
+            }));
+        }
+        Thread.sleep(millis);
+        running.set(false);
+        join(threads, failure);
+        for(int i = 0; i < STABLE_KEYS; i++){
+            assertEquals(Integer.valueOf(KEYS[i]), map.get(KEYS[i]));
+        }
+    }
+
+    // The first count keys that hash to the same stripe as key 0.
+    private static int[] keysInOneStripe(int count){
+        int[] keys = new int[count];
+        int stripe = IntMap.hash(0) >>> 28;
+        for(int key = 0, found = 0; found < count; key++){
+            if(IntMap.hash(key) >>> 28 == stripe){
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static Thread start(String name, AtomicReference<Throwable> failure, Runnable work){
+        Thread thread = new Thread(() -> {
+            try {
+                work.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    // Waits for the threads, then rethrows the first thing any of them failed with.
+    private static void join(List<Thread> threads, AtomicReference<Throwable> failure) throws Exception {
+        for(Thread thread : threads){
+            thread.join();
+        }
+        if(failure.get() instanceof Error){
+            throw (Error) failure.get();
+        }
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// What a Message carries for each image: the SHA-256 of the image's bytes plus a little metadata. The bytes themselves
+// are uploaded once and stored on the server by hash, and each client fetches them only when it shows the image.
+public class Attachment implements Serializable {
+    private String hash;
+    private int size; // Bytes.
+    private String fileType; // "png", "jpg"... from the file it was uploaded from.
+
+    public Attachment(String hash, int size, String fileType) {
+        this.hash = hash;
+        this.size = size;
+        this.fileType = fileType;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getFileType() {
+        return fileType;
+    }
+
+    // Whether a string someone sent us could be a key from hash(), so it is safe to use as a file name.
+    public static boolean isHash(String hash){
+        if(hash == null || hash.length() != 64){
+            return false;
+        }
+        for(int i = 0; i < hash.length(); i++){
+            if(Character.digit(hash.charAt(i), 16) < 0 || Character.isUpperCase(hash.charAt(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The key the bytes are stored under. The same image always gets the same key, whoever posts it and however often.
+    public static String hash(byte[] bytes){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte b : digest){
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JRE has it.
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "[Image " + hash.substring(0, 8) + "]";
+    }
+}
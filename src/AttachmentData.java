@@ -0,0 +1,26 @@
+import java.io.Serializable;
+
+// The bytes of an attachment. Sent by a client to upload an image before the message that uses it, and by the server
+// in answer to an AttachmentRequest.
+public class AttachmentData implements Serializable {
+    private String hash;
+    private byte[] bytes;
+
+    public AttachmentData(String hash, byte[] bytes) {
+        this.hash = hash;
+        this.bytes = bytes;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString(){
+        return "Attachment " + hash + " (" + bytes.length + " bytes)";
+    }
+}
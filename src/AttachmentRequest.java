@@ -0,0 +1,19 @@
+import java.io.Serializable;
+
+// Sent by a client that needs to show an image it doesn't have the bytes for. The server answers with AttachmentData.
+public class AttachmentRequest implements Serializable {
+    private String hash;
+
+    public AttachmentRequest(String hash) {
+        this.hash = hash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return "Request for attachment " + hash;
+    }
+}
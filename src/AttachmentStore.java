@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Server-side store of attachment bytes keyed by their hash. An image posted fifty times is stored once. Every
+// attachment is written to a file in -Dchat.attachmentDir as it is uploaded and kept for as long as the message log
+// keeps the messages that use it, which is forever, so the index of what is stored is rebuilt from that directory on
+// startup and logged history still finds its images after a restart. The most recently stored bytes are also kept in
+// memory, up to a budget, so fetching an image that was just posted doesn't touch the disk.
+public class AttachmentStore {
+    public static final long DEFAULT_MEMORY_BUDGET = Long.getLong("chat.attachmentMemory", 64L * 1024 * 1024);
+
+    private File directory;
+    private long memoryBudget;
+    private long memoryUsed;
+    private Set<String> stored; // Every hash with a file.
+    private Map<String, byte[]> recent; // In store order, so the oldest leave memory first.
+
+    public AttachmentStore(File directory, long memoryBudget) throws IOException {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.stored = new HashSet<String>();
+        this.recent = new LinkedHashMap<String, byte[]>();
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(".tmp")); // A .tmp is an upload cut short.
+        if(files != null){
+            for(File file : files){
+                stored.add(file.getName());
+            }
+        }
+    }
+
+    public synchronized boolean contains(String hash){
+        return stored.contains(hash);
+    }
+
+    // Stores uploaded bytes. Does nothing if they are already stored. Throws if the bytes don't match the hash, so one
+    // client can't poison an image other people have posted.
+    public void put(String hash, byte[] bytes) throws IOException {
+        if(contains(hash)){
+            return;
+        }
+        if(!Attachment.hash(bytes).equals(hash)){
+            throw new IOException("Attachment does not match its hash " + hash);
+        }
+        File temporary = File.createTempFile(hash, ".tmp", directory); // Outside the lock. Two uploads of one image write the same bytes.
+        Files.write(temporary.toPath(), bytes);
+        Files.move(temporary.toPath(), file(hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this){
+            if(stored.add(hash)){
+                recent.put(hash, bytes);
+                memoryUsed += bytes.length;
+                forgetOverBudget();
+            }
+        }
+    }
+
+    // Returns the bytes, reading them from disk if they aren't in memory, or null if there is no such attachment.
+    public byte[] get(String hash) throws IOException {
+        synchronized (this){
+            if(!stored.contains(hash)){
+                return null; // Also keeps a made-up hash from naming some other file.
+            }
+            byte[] bytes = recent.get(hash);
+            if(bytes != null){
+                return bytes;
+            }
+        }
+        return Files.readAllBytes(file(hash).toPath()); // Outside the lock. Stored files never change.
+    }
+
+    private void forgetOverBudget(){
+        Iterator<byte[]> iterator = recent.values().iterator();
+        while(memoryUsed > memoryBudget && iterator.hasNext()){
+            memoryUsed -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    private File file(String hash){
+        return new File(directory, hash);
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+// A piece of data on its way to one or more clients. Each recipient asks for the frame in his codec, and the data is
+// encoded the first time a codec is asked for and shared after that, so the cost of encoding a message (images
+// included) no longer grows with the number of people it goes to.
+public class Broadcast {
+    private final Object data;
+    private final Map<WireCodec, SharedFrame> frames; // At most one per codec in use.
+    private final long receivedNanos;
+    private final LongConsumer fanOut;
+
+    public Broadcast(Object data){
+        this(data, 0, null);
+    }
+
+    // Also tells fanOut, for each codec's frame, how long it took from receivedNanos until the last recipient got it.
+    public Broadcast(Object data, long receivedNanos, LongConsumer fanOut){
+        this.data = data;
+        this.frames = new HashMap<WireCodec, SharedFrame>(4);
+        this.receivedNanos = receivedNanos;
+        this.fanOut = fanOut;
+    }
+
+    public Object getData(){
+        return data;
+    }
+
+    // Returns the frame for this codec with a reference already taken for the caller, who must release it once written.
+    public synchronized SharedFrame frameFor(WireCodec codec) throws IOException {
+        SharedFrame frame = frames.get(codec);
+        if(frame == null){
+            frame = new SharedFrame(codec.encodeFrame(data), data instanceof Message);
+            if(fanOut != null){
+                frame.timeUntilReleased(receivedNanos, fanOut);
+            }
+            frames.put(codec, frame);
+        }
+        return frame.retain();
+    }
+
+    // Called once every recipient has his frame. Lets go of the encoder's references.
+    public synchronized void release(){
+        for(SharedFrame frame : frames.values()){
+            frame.release();
+        }
+        frames.clear();
+    }
+}
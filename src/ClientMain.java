@@ -8,17 +8,31 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 public class ClientMain implements Serializable {
-    protected List<Integer> registeredUsers; // Since clients will be on different computers, it's fastest to keep local copies of registered users.
-    protected int clientID;
+    public static final int MESSAGE_WINDOW = Integer.getInteger("chat.messageWindow", 200); // Most messages kept per group once it's out of view.
+    public static final int HISTORY_PAGE_SIZE = 50;
+    protected List<Integer> registeredUsers; // Since clients will be on different computers, it's fastest to keep local copies of registered users. Sorted. JavaFX thread only.
+    private long presenceVersion; // Version of the last presence change applied to registeredUsers. -1 while waiting for a snapshot. JavaFX thread only.
+    protected volatile int clientID; // Set by the connector thread, read everywhere.
     private View view; // Each client has a view he can update as he gets new messages, added to/removed from groups, etc.
     private List<Group> groups; // Each client needs to have their own group list in order to display the groups on the side view.
-    private Socket socket;
+    private WireCodec codec; // Picked by the server when we connected.
+    private CountDownLatch welcomed; // Released by the first Welcome.
+    private LocalStore localStore; // Our groups, messages and image bytes on disk, from this run and earlier ones.
+    private Set<String> requestedAttachments; // Fetches sent but not yet answered, so scrolling past an image twice asks once.
+    private UiUpdates uiUpdates; // Everything groups and messages received waits here for the next JavaFX drain.
+    private Set<Integer> historyRequested; // Groups with a history page on its way. JavaFX thread only.
+    private Set<Integer> historyComplete; // Groups whose messages go all the way back to the first one. JavaFX thread only.
+    private Map<Integer, List<Message>> heldWhileSyncing; // Live messages for groups still catching up on what they missed. JavaFX thread only.
 
     public List<Group> getGroups() {
         return groups;
@@ -29,35 +43,221 @@ public class ClientMain implements Serializable {
     }
 
     public ClientMain() {
-        clientID = -1; // Initial value to indicate ID not yet set.
+        this(-1); // Initial value to indicate ID not yet set.
+        try {
+            view = new View(this);
+            localStore = openLocalStore();
+            localStore.loadGroups().thenAccept(restored -> Platform.runLater(() -> { // Show what we had last time while we connect.
+                for(Group group : restored){
+                    groups.add(group);
+                    view.updateSideView(group, false);
+                }
+            }));
+            Thread connector = new Thread(new Connector(), "connector"); // Connects, reads from the server and reconnects, all off the JavaFX thread.
+            connector.setDaemon(true);
+            connector.start();
+            welcomed.await(); // Until the server has told us who we are.
+
+            EventLog.debug("Created View.");
+        } catch (IOException e) {
+            EventLog.error("Could not open local store: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            EventLog.warn("Interrupted.");
+        }
+    }
+
+    // Only the client's state: no window, no store, no connection. For benchmarks of the group list.
+    ClientMain(int clientID) {
+        this.clientID = clientID;
+        welcomed = new CountDownLatch(1);
         registeredUsers = new ArrayList<Integer>();
+        presenceVersion = -1;
         groups = new ArrayList<Group>();
+        requestedAttachments = ConcurrentHashMap.newKeySet();
+        uiUpdates = new UiUpdates();
+        historyRequested = new HashSet<Integer>();
+        historyComplete = new HashSet<Integer>();
+        heldWhileSyncing = new HashMap<Integer, List<Message>>();
+    }
+
+    // The profile's store, or a throwaway one if the profile directory can't be used.
+    private static LocalStore openLocalStore() throws IOException {
         try {
-            view = new View(this);
-            setSocket();
+            return LocalStore.openProfile();
+        } catch (IOException e) {
+            EventLog.warn("Could not open local store: {}. Nothing will be kept after this run.", e.getMessage());
+            return new LocalStore(java.nio.file.Files.createTempDirectory("chat").toFile());
+        }
+    }
+
+    // Asks the server for the messages each group got while we were away: everything after the newest one we
+    // stored, or the latest page if we stored none. Live messages for the group are held back until it has caught up,
+    // so messages stay in order.
+    private void catchUp(){
+        for(Group group : groups){
+            List<Message> messages = group.getMessages();
+            long highWaterMark = messages.isEmpty() ? -1 : messages.get(messages.size() - 1).getSequence();
+            if(highWaterMark >= 0){
+                heldWhileSyncing.computeIfAbsent(group.getGroupID(), id -> new ArrayList<Message>()); // Keep what a catch-up cut short by a reconnect was holding.
+                view.send(new HistoryRequest(group.getGroupID(), highWaterMark, false, HISTORY_PAGE_SIZE));
+            }else if(messages.isEmpty()){
+                requestOlderMessages(group);
+            }
+        }
+    }
+
+    // Returns the bytes of an attachment, or null if we don't have them yet. Read from disk, so only ask when the
+    // decoded image isn't cached.
+    public byte[] getAttachment(String hash){
+        return localStore.getAttachment(hash);
+    }
+
+    public boolean hasAttachment(String hash){
+        return localStore.hasAttachment(hash);
+    }
+
+    public void putAttachment(String hash, byte[] bytes){
+        localStore.putAttachment(hash, bytes);
+    }
+
+    // Returns true if the attachment still has to be asked for, false if it already was.
+    public boolean markRequested(String hash){
+        return requestedAttachments.add(hash);
+    }
 
-            OutputStream outputStream = socket.getOutputStream();
-            InputStream inputStream = socket.getInputStream();
+    // Asks the server for the page of messages just before the oldest one we hold, unless one is already on its way or
+    // we already hold everything. Called on the JavaFX thread when the top of the message list comes into view.
+    public void requestOlderMessages(Group group){
+        Integer groupID = group.getGroupID();
+        if(historyComplete.contains(groupID) || historyRequested.contains(groupID)){
+            return;
+        }
+        List<Message> messages = group.getMessages();
+        long cursor = messages.isEmpty() ? HistoryRequest.LATEST : messages.get(0).getSequence();
+        if(cursor < 0){ // The server couldn't log this one, so it can't tell us what came before it.
+            historyComplete.add(groupID);
+            return;
+        }
+        historyRequested.add(groupID);
+        localStore.pageBefore(groupID, cursor, HISTORY_PAGE_SIZE).thenAccept(page -> { // What we stored ourselves first. Only then the server.
+            if(page.getMessages().isEmpty()){
+                view.send(new HistoryRequest(groupID, cursor, true, HISTORY_PAGE_SIZE));
+            }else{
+                uiUpdates.add(page);
+            }
+        });
+    }
 
-            ObjectOutputStream outputToServer = new ObjectOutputStream(outputStream);
-            view.setConnections(outputToServer, inputStream, outputStream);
-            // Make a thread to listen to the updates from the server.
-            new Thread(new ServerHandler(inputStream)).start();
-            while(this.clientID == -1){
-                // Client connects to server. Input and output streams are established on both sides, but client waits until he gets a valid ID before sending ID to server.
-                // ClientID set in ServerHandler thread, so yield CPU to allow for it to change.
-                Thread.yield();
+    // Drops a group's oldest messages beyond MESSAGE_WINDOW, so a long-running client holds a bounded number of
+    // messages per group. They can be paged back in from the server. Returns how many were dropped.
+    public int trimHistory(Group group){
+        List<Message> messages = group.getMessages();
+        int excess = messages.size() - MESSAGE_WINDOW;
+        if(excess <= 0){
+            return 0;
+        }
+        messages.subList(0, excess).clear();
+        historyComplete.remove(group.getGroupID());
+        return excess;
+    }
+
+    // Puts a page of older messages in front of what we hold. Returns how many were added. Messages we already have
+    // (e.g. ones that arrived live while the page was on its way) are left out.
+    private int addOlderMessages(Group group, HistoryPage page){
+        historyRequested.remove(group.getGroupID());
+        if(page.isComplete()){
+            historyComplete.add(group.getGroupID());
+        }
+        List<Message> messages = group.getMessages();
+        long oldestHeld = messages.isEmpty() ? Long.MAX_VALUE : messages.get(0).getSequence();
+        List<Message> older = new ArrayList<Message>();
+        for(Message message : page.getMessages()){
+            if(message.getSequence() < oldestHeld){
+                older.add(message);
             }
-            outputToServer.writeObject(this.clientID);
-            outputToServer.flush();
+        }
+        messages.addAll(0, older);
+        return older.size();
+    }
 
-            System.out.println("Created View.");
-        } catch (IOException e) {
-            System.out.println("Could not create socket to server.");
+    // Adds a page of messages we missed to the end of the group, and to newMessages. Asks for the next page if there
+    // is more, or else lets through the live messages held back meanwhile. Returns true if any messages were added.
+    private boolean addNewerMessages(Group group, HistoryPage page, List<Message> newMessages){
+        List<Message> held = heldWhileSyncing.get(group.getGroupID());
+        if(held == null){ // Not catching up, e.g. we were removed and re-added meanwhile.
+            return false;
+        }
+        List<Message> messages = group.getMessages();
+        int before = messages.size();
+        for(Message message : page.getMessages()){
+            if(messages.isEmpty() || message.getSequence() > messages.get(messages.size() - 1).getSequence()){
+                messages.add(message);
+                newMessages.add(message);
+            }
+        }
+        if(!page.isComplete() && !page.getMessages().isEmpty()){
+            long last = page.getMessages().get(page.getMessages().size() - 1).getSequence();
+            view.send(new HistoryRequest(group.getGroupID(), last, false, HISTORY_PAGE_SIZE));
+        }else{ // Caught up.
+            heldWhileSyncing.remove(group.getGroupID());
+            for(Message message : held){
+                if(messages.isEmpty() || message.getSequence() > messages.get(messages.size() - 1).getSequence()){
+                    messages.add(message);
+                    newMessages.add(message);
+                }
+            }
         }
+        return messages.size() > before;
     }
 
-    private Group getGroupWithID(int groupID){
+    // Whether a message is one we already hold. The server queues each group's messages in sequence order, so only
+    // the newest needs checking. An unlogged message (sequence -1) is never a repeat.
+    private boolean isHeld(Group group, Message message){
+        List<Message> messages = group.getMessages();
+        return message.getSequence() >= 0 && !messages.isEmpty() && message.getSequence() <= messages.get(messages.size() - 1).getSequence();
+    }
+
+    // Applies the registered users as of a presence version, and brings an open AddUsersStage in line with them.
+    private void applyPresence(PresenceSnapshot snapshot){
+        registeredUsers = new ArrayList<Integer>(snapshot.getUsers());
+        Collections.sort(registeredUsers);
+        presenceVersion = snapshot.getVersion();
+        if(view.getAddUsersStage() != null && view.getAddUsersStage().isShowing()){
+            view.getAddUsersStage().update();
+        }
+        EventLog.debug("Registered users {}", registeredUsers);
+    }
+
+    // Applies one user joining or leaving, if it is the change right after the last one we applied. Older ones are
+    // already in our list. If we missed one, we ask for a snapshot and ignore changes until it comes.
+    private void applyPresence(PresenceDelta delta){
+        if(presenceVersion < 0 || delta.getVersion() <= presenceVersion){
+            return;
+        }
+        if(delta.getVersion() != presenceVersion + 1){
+            EventLog.info("Missed presence changes {} to {}. Asking for a snapshot.", presenceVersion + 1, delta.getVersion() - 1);
+            presenceVersion = -1;
+            view.send(new PresenceRequest());
+            return;
+        }
+        presenceVersion = delta.getVersion();
+        int index = Collections.binarySearch(registeredUsers, delta.getClientID());
+        View.AddUsersStage addUsersStage = view.getAddUsersStage();
+        boolean stageShowing = addUsersStage != null && addUsersStage.isShowing(); // If I am in the middle of creating/updating a group, keep me up to date on available people.
+        if(delta.isJoined() && index < 0){
+            registeredUsers.add(-index - 1, delta.getClientID());
+            if(stageShowing){
+                addUsersStage.userJoined(delta.getClientID());
+            }
+        }else if (!delta.isJoined() && index >= 0){
+            registeredUsers.remove(index);
+            if(stageShowing){
+                addUsersStage.userLeft(delta.getClientID());
+            }
+        }
+    }
+
+    Group getGroupWithID(int groupID){
         for (Group group: groups){
             if(group.getGroupID() == groupID){
                 return group;
@@ -66,120 +266,266 @@ public class ClientMain implements Serializable {
         return null;
     }
 
-    private void updateGroupList(Group group){
+    void updateGroupList(Group group){
         Group myCopy = getGroupWithID(group.getGroupID());
         if(myCopy != null && !group.getClientIDs().contains(clientID)){ // Previously in group. Not anymore. Kick me out.
             groups.remove(myCopy);
-            System.out.println("Kicked out. " + groups);
+            EventLog.debug("Kicked out. {}", groups);
         }else if(myCopy != null && group.getClientIDs().contains(clientID)){ // Previously in group. Still in group. Update name and members list.
             myCopy.setGroupName(group.getGroupName());
             myCopy.setClientIDs(group.getClientIDs());
-            System.out.println("Updated. " + groups);
+            EventLog.debug("Updated. {}", groups);
         }else if (myCopy == null && group.getClientIDs().contains(clientID)){ // Not already in group. Added in.
             groups.add(group);
-            System.out.println("Added. " + groups);
+            EventLog.debug("Added. {}", groups);
         }
     }
 
-    // Observes input from the server.
-    class ServerHandler implements Runnable{
-        // We will read updates from the server coming in to the input stream, so we need an input stream to read from.
-        ObjectInputStream inputFromServer;
+    // Applies a membership/rename change to our copy of the group in place. If we were just added, the server sends us the
+    // Group itself instead, so a delta for a group we don't have can be ignored.
+    void updateGroupList(GroupDelta delta){
+        Group myCopy = getGroupWithID(delta.getGroupID());
+        if(myCopy == null){
+            return;
+        }
+        if(delta.getRemovedIDs().contains(clientID)){ // Kick me out.
+            groups.remove(myCopy);
+            EventLog.debug("Kicked out. {}", groups);
+            return;
+        }
+        List<Integer> clientIDs = new ArrayList<Integer>(myCopy.getClientIDs());
+        clientIDs.removeAll(delta.getRemovedIDs());
+        for(Integer addedID : delta.getAddedIDs()){
+            if(!clientIDs.contains(addedID)){
+                clientIDs.add(addedID);
+            }
+        }
+        myCopy.setClientIDs(clientIDs);
+        if(delta.getNewGroupName() != null){
+            myCopy.setGroupName(delta.getNewGroupName());
+        }
+        EventLog.debug("Updated. {}", groups);
+    }
 
-        // Initializes input stream from server.
-        public ServerHandler(InputStream inputFromServer){
-            try {
-                this.inputFromServer = new ObjectInputStream(inputFromServer);
-            } catch (IOException e) {
-                System.out.println("Could not create ObjectInputStream From ServerHandler");
+    // Connects to the server, says hello, then observes input from the server until the connection breaks. Then connects
+    // again, waiting a little longer after each failed try, and resumes our session so we keep our ID and groups. Until
+    // we have connected once, a failed connect asks for the address again instead.
+    class Connector implements Runnable {
+        private static final long MIN_BACKOFF_MILLIS = 250;
+        private static final long MAX_BACKOFF_MILLIS = 30000;
+
+        @Override
+        public void run() {
+            String address = askForServerAddress();
+            long backoff = MIN_BACKOFF_MILLIS;
+            while(true){
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(address, Integer.getInteger("chat.port", ServerConfig.DEFAULT_PORT)), 5000);
+                    socket.setTcpNoDelay(true);
+                    EventLog.info("Connected");
+                    OutputStream outputStream = socket.getOutputStream();
+                    InputStream inputStream = socket.getInputStream();
+                    DataOutputStream outputToServer = new DataOutputStream(new BufferedOutputStream(outputStream));
+                    DataInputStream inputFromServer = new DataInputStream(new BufferedInputStream(inputStream));
+                    codec = WireCodec.negotiate(outputToServer, inputFromServer, WireCodec.preferred()); // Agree on how frames are encoded before anything else is sent.
+                    Frames.write(outputToServer, codec, new Hello(localStore.getSessionToken()));
+                    outputToServer.flush();
+                    view.setConnections(outputToServer, codec, inputStream, outputStream);
+                    backoff = MIN_BACKOFF_MILLIS;
+                    read(inputFromServer);
+                    EventLog.info("Connection severed or server shut down.");
+                } catch (IOException e) {
+                    EventLog.warn("Could not connect to or read from server: {}", e.getMessage());
+                }
+                if(welcomed.getCount() > 0){ // Never got in. Maybe the address is wrong.
+                    address = askForServerAddress();
+                    continue;
+                }
+                try {
+                    long wait = backoff + (long) (Math.random() * backoff / 2); // Jitter, so clients cut off together don't all come back at once.
+                    EventLog.info("Reconnecting in {} ms", wait);
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
             }
         }
 
         // Observes input from the server.
+        private void read(DataInputStream inputFromServer) throws IOException {
+            Object dataFromServer = Frames.read(inputFromServer, codec);
+            while(dataFromServer != null){
+                if (dataFromServer instanceof PresenceSnapshot || dataFromServer instanceof PresenceDelta){ // Who is registered, or who joined or left.
+                    uiUpdates.add(dataFromServer);
+                }else if (dataFromServer instanceof Welcome){ // Who we are.
+                    welcome((Welcome) dataFromServer);
+                }else if (dataFromServer instanceof AttachmentData){ // Bytes for an image we asked to show.
+                    AttachmentData attachmentData = (AttachmentData)dataFromServer;
+                    localStore.putAttachment(attachmentData.getHash(), attachmentData.getBytes());
+                    requestedAttachments.remove(attachmentData.getHash());
+                    uiUpdates.add(attachmentData);
+                }else if (dataFromServer instanceof AttachmentRequest){ // The server doesn't have an image we posted. Upload it after all.
+                    String hash = ((AttachmentRequest)dataFromServer).getHash();
+                    byte[] bytes = localStore.getAttachment(hash);
+                    if(bytes != null){
+                        view.send(new AttachmentData(hash, bytes));
+                    }
+                }else if (dataFromServer instanceof Group || dataFromServer instanceof GroupDelta || dataFromServer instanceof Message || dataFromServer instanceof HistoryPage){
+                    uiUpdates.add(dataFromServer); // Applied to our groups and shown on the JavaFX thread, together with whatever else arrives meanwhile.
+                }
+                dataFromServer = Frames.read(inputFromServer, codec);
+            }
+        }
+
+        private void welcome(Welcome welcome){
+            if(clientID != -1 && !welcome.isResumed()){
+                EventLog.warn("Could not resume session as client {}. Now client {}", clientID, welcome.getClientID());
+            }
+            clientID = welcome.getClientID();
+            EventLog.info("{}", welcome);
+            localStore.saveSessionToken(welcome.getSessionToken());
+            requestedAttachments.clear(); // Requests on the old connection may never be answered.
+            if(!welcome.isResumed()){
+                view.send(clientID); // Register. A resumed client still is.
+            }
+            Platform.runLater(() -> { // Runs after the restored groups are shown, since runLater keeps order.
+                historyRequested.clear(); // Likewise for history pages.
+                catchUp();
+            });
+            welcomed.countDown();
+        }
+    }
+
+    // Collects the group changes and messages the server sends and applies them on the JavaFX thread in batches. During
+    // a burst, hundreds of messages then cost one side view redraw and one message pane update per batch instead of
+    // one each. Only one drain is ever waiting in the JavaFX queue at a time.
+    class UiUpdates implements Runnable {
+        private ConcurrentLinkedQueue<Object> pending;
+        private AtomicBoolean drainScheduled;
+
+        UiUpdates(){
+            pending = new ConcurrentLinkedQueue<Object>();
+            drainScheduled = new AtomicBoolean();
+        }
+
+        void add(Object dataFromServer){
+            pending.add(dataFromServer);
+            if(drainScheduled.compareAndSet(false, true)){
+                Platform.runLater(this);
+            }
+        }
+
+        // Drains everything that arrived since the last drain.
         @Override
         public void run() {
-            try {
-                Object dataFromServer = inputFromServer.readObject();
-                while(dataFromServer != null){
-                    if (dataFromServer instanceof List){ // Received registered users list.
-                        registeredUsers = (ArrayList)dataFromServer;
-                        if(view != null && view.getAddUsersStage() != null && view.getAddUsersStage().isShowing()){ // If I am in the middle of creating/updating a group, keep me up to date on available people.
-                            // Remove the people no longer in the group
-                            System.out.println("UPDATING");
-                            view.getAddUsersStage().update();
+            drainScheduled.set(false); // Anything added from here on schedules another drain.
+            Set<Integer> changedGroups = new HashSet<Integer>();
+            Set<Integer> groupsWithNewMessages = new HashSet<Integer>();
+            Map<Integer, Integer> olderMessagesAdded = new HashMap<Integer, Integer>(); // Group ID -> messages put in front.
+            Map<Integer, List<Message>> toStore = new HashMap<Integer, List<Message>>(); // New messages to append to the local store.
+            boolean attachmentsArrived = false;
+            Object data = pending.poll();
+            while(data != null){
+                if(data instanceof Group){
+                    updateGroupList((Group) data);
+                    changedGroups.add(((Group) data).getGroupID());
+                }else if (data instanceof GroupDelta){
+                    updateGroupList((GroupDelta) data);
+                    changedGroups.add(((GroupDelta) data).getGroupID());
+                }else if (data instanceof Message){
+                    Message message = (Message) data;
+                    Group myCopy = getGroupWithID(message.getIntendedGroupID());
+                    List<Message> held = heldWhileSyncing.get(message.getIntendedGroupID());
+                    if(held != null){ // Still catching up. Shown once we have what came before it.
+                        held.add(message);
+                    }else if(myCopy != null && !isHeld(myCopy, message)){ // I am part of the group this message is intended for.
+                        myCopy.addMessage(message);
+                        toStore.computeIfAbsent(myCopy.getGroupID(), id -> new ArrayList<Message>()).add(message);
+                        groupsWithNewMessages.add(myCopy.getGroupID());
+                    }
+                }else if (data instanceof HistoryPage){
+                    HistoryPage page = (HistoryPage) data;
+                    Group myCopy = getGroupWithID(page.getGroupID());
+                    if(myCopy != null && !page.isOlder()){ // Catching up on what we missed.
+                        if(addNewerMessages(myCopy, page, toStore.computeIfAbsent(myCopy.getGroupID(), id -> new ArrayList<Message>()))){
+                            groupsWithNewMessages.add(myCopy.getGroupID());
                         }
-                        System.out.println(registeredUsers);
-                    }else if (dataFromServer instanceof Integer && clientID == -1){ // Received our new client ID.
-                        clientID = (Integer)dataFromServer;
-                        System.out.println("NEW ID OF " + clientID);
-                    }else if (dataFromServer instanceof Group){
-                        Group group = (Group)dataFromServer;
-                        updateGroupList(group);
-                        boolean stillInGroup = getGroupWithID(group.getGroupID()) != null;
-                        Platform.runLater(() -> {
-                            view.updateSideView();
-                            if(view.getCurrentGroup() != null && view.getCurrentGroup().getGroupID().equals(group.getGroupID())){ // We updated the group that's currently displayed.
-                                if(stillInGroup){
-                                    view.setGroupNameLabel(group.getGroupName());
-                                }else{
-                                    view.updateMessageView(null);
-                                }
-                            }
-                        });
-                    }else if (dataFromServer instanceof Message){
-                        Message message = (Message)dataFromServer;
-                        Group myCopy = getGroupWithID(message.getIntendedGroupID());
-                        if(myCopy != null){ // I am part of the group this message is intended for.
-                            myCopy.addMessage(message);
-                            Platform.runLater(() -> {
-                                view.updateSideView();
-                                if(view.getCurrentGroup() != null && view.getCurrentGroup().getGroupID().equals(message.getIntendedGroupID())){ // The currently displayed group is the one we sent the message to. Update message view.
-                                    view.updateMessageView(myCopy);
-                                }
-                            });
+                    }else if(myCopy != null && page.isOlder()){
+                        boolean hadMessages = !myCopy.getMessages().isEmpty();
+                        olderMessagesAdded.merge(myCopy.getGroupID(), addOlderMessages(myCopy, page), Integer::sum);
+                        if(!hadMessages){
+                            changedGroups.add(myCopy.getGroupID()); // The side view preview can show its last message now.
                         }
                     }
-                    dataFromServer = inputFromServer.readObject();
+                }else if (data instanceof PresenceSnapshot){
+                    applyPresence((PresenceSnapshot) data);
+                }else if (data instanceof PresenceDelta){
+                    applyPresence((PresenceDelta) data);
+                }else if (data instanceof AttachmentData){
+                    attachmentsArrived = true;
                 }
-                System.err.println("RECEIVED NULL DATA!!!!!!!!!!!!!!!!");
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Could not read data from server");
+                data = pending.poll();
             }
 
-            System.out.println("Connection severed or server shut down.");
-            try{
-                view.inputStream.close();
-                view.outputStream.close();
-            }catch(IOException ioe){
-                System.out.println("Could not close streams");
+            for(Integer groupID : changedGroups){
+                Group myCopy = getGroupWithID(groupID);
+                if(myCopy == null){
+                    view.removeFromSideView(groupID);
+                    heldWhileSyncing.remove(groupID);
+                    localStore.removeGroup(groupID);
+                }else{
+                    view.updateSideView(myCopy, false);
+                    Group saved = new Group(new ArrayList<Integer>(myCopy.getClientIDs()), myCopy.getGroupName()); // The store writes later, on its own thread.
+                    saved.setGroupID(groupID);
+                    localStore.saveGroup(saved);
+                }
+            }
+            for(Map.Entry<Integer, List<Message>> entry : toStore.entrySet()){
+                if(!entry.getValue().isEmpty()){
+                    localStore.append(entry.getKey(), entry.getValue());
+                }
+            }
+            for(Integer groupID : groupsWithNewMessages){
+                Group myCopy = getGroupWithID(groupID);
+                if(myCopy != null){
+                    view.updateSideView(myCopy, true);
+                    if(myCopy != view.getCurrentGroup()){
+                        trimHistory(myCopy); // Out of view, so nobody is reading the old ones.
+                    }
+                }
+            }
+            Group currentGroup = view.getCurrentGroup();
+            if(currentGroup != null && changedGroups.contains(currentGroup.getGroupID())){ // We updated the group that's currently displayed.
+                Group myCopy = getGroupWithID(currentGroup.getGroupID());
+                if(myCopy != null){
+                    view.setGroupNameLabel(myCopy.getGroupName());
+                }else{ // We were removed from it.
+                    view.updateMessageView(null);
+                    currentGroup = null;
+                }
+            }
+            if(currentGroup != null && olderMessagesAdded.containsKey(currentGroup.getGroupID())){
+                view.showOlderMessages(currentGroup, olderMessagesAdded.get(currentGroup.getGroupID()));
+            }
+            if(currentGroup != null && groupsWithNewMessages.contains(currentGroup.getGroupID())){
+                view.showNewMessages(currentGroup);
+            }
+            if(attachmentsArrived){
+                view.refreshMessages();
             }
-            System.exit(0);
         }
     }
 
-    private void setSocket(){
-        Semaphore semaphore = new Semaphore(0);
-        Platform.runLater(() -> {
-            boolean found = false;
-            do {
-                try {
-                    String IPAddress = getIPAddress();
-                    if(IPAddress == null || IPAddress.trim().equals("")){
-                        throw new Exception();
-                    }
-                    socket = new Socket(IPAddress, 8000);
-                    System.out.println("Connected");
-                    found = true;
-                    semaphore.release();
-                }catch(Exception ioe){
-                    System.out.println("Failed to connect.");
-                }
-            }while(!found);
-        });
-        try {
-            semaphore.acquire();
-        }catch(InterruptedException ie){
-            System.out.println("Interrupted.");
+    // Asks the user for the server's address on the JavaFX thread and waits for the answer.
+    private static String askForServerAddress(){
+        while(true){
+            CompletableFuture<String> address = new CompletableFuture<String>();
+            Platform.runLater(() -> address.complete(getIPAddress()));
+            String IPAddress = address.join();
+            if(IPAddress != null && !IPAddress.trim().equals("")){
+                return IPAddress.trim();
+            }
         }
     }
 
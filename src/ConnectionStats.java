@@ -0,0 +1,88 @@
+// One connection's traffic, for ServerMetrics. Every field has a single writer (the connection's reader thread, its
+// writer thread, or its event loop, which is both), so plain volatile fields are enough: recording is a couple of
+// stores and never waits on another connection. The server-wide totals are LongAdders in ServerMetrics.
+public class ConnectionStats {
+    private final ServerMetrics metrics;
+    private volatile int clientID = -1; // Until he has said hello.
+    private volatile OutboundQueue outboundQueue;
+    private volatile long bytesIn, framesIn; // Reader.
+    private volatile long bytesOut, framesOut, flushes, writeNanos, maxWriteNanos; // Writer.
+
+    public ConnectionStats(ServerMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    // Once he has said hello and has a queue.
+    public void joined(int clientID, OutboundQueue outboundQueue){
+        this.clientID = clientID;
+        this.outboundQueue = outboundQueue;
+    }
+
+    public void bytesRead(int bytes){
+        bytesIn += bytes;
+        metrics.bytesIn.add(bytes);
+    }
+
+    public void frameRead(){
+        framesIn++;
+    }
+
+    // A batch of whole frames is out in one flush, nanos after the writer started on the first of them.
+    public void batchWritten(int frames, int bytes, long nanos){
+        bytesOut += bytes;
+        framesOut += frames;
+        flushes++;
+        writeNanos += nanos;
+        if(nanos > maxWriteNanos){
+            maxWriteNanos = nanos;
+        }
+        metrics.bytesOut.add(bytes);
+        metrics.framesOut.add(frames);
+        metrics.flushes.increment();
+        metrics.recordWrite(nanos);
+    }
+
+    public int getClientID(){
+        return clientID;
+    }
+
+    public int getQueueDepth(){
+        OutboundQueue queue = outboundQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long getDropped(){
+        OutboundQueue queue = outboundQueue;
+        return queue == null ? 0 : queue.getDropped();
+    }
+
+    public long getBytesIn(){
+        return bytesIn;
+    }
+
+    public long getFramesIn(){
+        return framesIn;
+    }
+
+    public long getBytesOut(){
+        return bytesOut;
+    }
+
+    public long getFramesOut(){
+        return framesOut;
+    }
+
+    public long getFlushes(){
+        return flushes;
+    }
+
+    // Per flush, like the max.
+    public long getMeanWriteNanos(){
+        long batches = flushes;
+        return batches == 0 ? 0 : writeNanos / batches;
+    }
+
+    public long getMaxWriteNanos(){
+        return maxWriteNanos;
+    }
+}
@@ -0,0 +1,224 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// What the server and client say about what they are doing, without making them wait to say it. Logging an event
+// checks the level, claims a slot in a fixed ring of preallocated events and fills it in: no lock, no allocation and
+// no formatting on the caller's thread. A background thread formats whatever has been logged and prints it in one go.
+// If the ring is full the event is dropped and counted rather than holding anyone up.
+//
+// -Dchat.log        least important level printed: debug, info (default), warn or error
+// -Dchat.logBuffer  events the ring holds before dropping (default 8192, rounded up to a power of two)
+//
+// Messages are templates with {} for each argument, which is only turned into a string on the writer thread, and only
+// if the level is on. An argument that changes after being logged may show its later state. Box primitives yourself,
+// behind isDebugEnabled(), so nothing is allocated when debug is off.
+public class EventLog {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level LEVEL = level(System.getProperty("chat.log", "info"));
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final long IDLE_NANOS = 10000000; // How long the writer sleeps when there is nothing to print.
+
+    private static final Event[] ring = newRing(Integer.getInteger("chat.logBuffer", 8192));
+    private static final int mask = ring.length - 1;
+    private static final AtomicLong next = new AtomicLong(); // Next slot to claim. Any thread.
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long read; // Next slot to print. Only under the class lock, so one drain at a time.
+    private static final StringBuilder text = new StringBuilder(8192);
+
+    static {
+        Thread writer = new Thread(EventLog::write, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::drain, "event-log-flush")); // Whatever was logged on the way out.
+        if(!LEVEL.name().equalsIgnoreCase(System.getProperty("chat.log", "info").trim())){ // Only now, once there is a ring to log to.
+            warn("Unknown log level {}. Using INFO.", System.getProperty("chat.log"));
+        }
+    }
+
+    private EventLog(){}
+
+    // The level called name, or INFO if there is none. A typo in -Dchat.log mustn't keep everything that logs from loading.
+    private static Level level(String name){
+        for(Level level : Level.values()){
+            if(level.name().equalsIgnoreCase(name.trim())){
+                return level;
+            }
+        }
+        return Level.INFO;
+    }
+
+    // One slot in the ring. A slot is free for claim number n when its sequence is n, and holds that event once its
+    // sequence is n + 1. The writer then frees it for n + ring length.
+    private static final class Event {
+        volatile long sequence;
+        Level level;
+        long millis;
+        String thread;
+        String template;
+        Object first, second, third;
+    }
+
+    private static Event[] newRing(int size){
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        Event[] events = new Event[capacity];
+        for(int i = 0; i < capacity; i++){
+            events[i] = new Event();
+            events[i].sequence = i;
+        }
+        return events;
+    }
+
+    public static boolean isEnabled(Level level){
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static boolean isDebugEnabled(){
+        return LEVEL == Level.DEBUG;
+    }
+
+    public static void debug(String template){
+        log(Level.DEBUG, template, null, null, null);
+    }
+
+    public static void debug(String template, Object first){
+        log(Level.DEBUG, template, first, null, null);
+    }
+
+    public static void debug(String template, Object first, Object second){
+        log(Level.DEBUG, template, first, second, null);
+    }
+
+    public static void info(String template){
+        log(Level.INFO, template, null, null, null);
+    }
+
+    public static void info(String template, Object first){
+        log(Level.INFO, template, first, null, null);
+    }
+
+    public static void info(String template, Object first, Object second){
+        log(Level.INFO, template, first, second, null);
+    }
+
+    public static void info(String template, Object first, Object second, Object third){
+        log(Level.INFO, template, first, second, third);
+    }
+
+    public static void warn(String template){
+        log(Level.WARN, template, null, null, null);
+    }
+
+    public static void warn(String template, Object first){
+        log(Level.WARN, template, first, null, null);
+    }
+
+    public static void warn(String template, Object first, Object second){
+        log(Level.WARN, template, first, second, null);
+    }
+
+    public static void warn(String template, Object first, Object second, Object third){
+        log(Level.WARN, template, first, second, third);
+    }
+
+    public static void error(String template){
+        log(Level.ERROR, template, null, null, null);
+    }
+
+    public static void error(String template, Object first){
+        log(Level.ERROR, template, first, null, null);
+    }
+
+    public static void log(Level level, String template, Object first, Object second, Object third){
+        if(!isEnabled(level)){
+            return;
+        }
+        Event event;
+        long claim;
+        while(true){
+            claim = next.get();
+            event = ring[(int) (claim & mask)];
+            long sequence = event.sequence;
+            if(sequence < claim){ // Still holds an event from one lap ago. The writer is behind.
+                dropped.incrementAndGet();
+                return;
+            }
+            if(sequence == claim && next.compareAndSet(claim, claim + 1)){
+                break;
+            } // Otherwise another thread claimed it first. Try the next one.
+        }
+        event.level = level;
+        event.millis = System.currentTimeMillis();
+        event.thread = Thread.currentThread().getName();
+        event.template = template;
+        event.first = first;
+        event.second = second;
+        event.third = third;
+        event.sequence = claim + 1; // Published. The writer sees every field set above.
+    }
+
+    private static void write(){
+        while(true){
+            if(!drain()){
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    // Prints every event logged so far. Returns whether there were any.
+    private static synchronized boolean drain(){
+        long start = read;
+        Event event = ring[(int) (read & mask)];
+        while(event.sequence == read + 1){
+            format(event);
+            event.template = null;
+            event.thread = null;
+            event.first = event.second = event.third = null; // So the ring doesn't keep old messages alive.
+            event.sequence = read + ring.length;
+            read++;
+            event = ring[(int) (read & mask)];
+            if(text.length() >= 8192){
+                flushText();
+            }
+        }
+        long lost = dropped.getAndSet(0);
+        if(lost > 0){
+            text.append(TIME.format(Instant.now())).append(" WARN  [event-log] ").append(lost).append(" events dropped, the log could not keep up\n");
+        }
+        flushText();
+        return read != start;
+    }
+
+    private static void format(Event event){
+        text.append(TIME.format(Instant.ofEpochMilli(event.millis))).append(' ').append(event.level);
+        if(event.level.name().length() == 4){
+            text.append(' '); // Lines up the messages.
+        }
+        text.append(" [").append(event.thread).append("] ");
+        String template = event.template;
+        Object[] arguments = {event.first, event.second, event.third};
+        int argument = 0;
+        int from = 0;
+        int at;
+        try {
+            while(argument < arguments.length && (at = template.indexOf("{}", from)) >= 0){
+                text.append(template, from, at).append(arguments[argument++]);
+                from = at + 2;
+            }
+        } catch (RuntimeException e) { // Its toString ran into it changing on another thread.
+            text.append("(could not format: ").append(e).append(") ");
+        }
+        text.append(template, from, template.length()).append('\n');
+    }
+
+    private static void flushText(){
+        if(text.length() > 0){
+            System.out.print(text);
+            System.out.flush();
+            text.setLength(0);
+        }
+    }
+}
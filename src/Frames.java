@@ -0,0 +1,36 @@
+import java.io.*;
+
+// Length-prefixed framing shared by the client and both server engines. Every object goes over the socket as a 4 byte
+// length followed by that many bytes of the object, encoded with the connection's WireCodec. The NIO engine can then
+// cut frames out of its read buffer without blocking until a whole object has arrived.
+public class Frames {
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024; // Generous enough for a message full of images. Anything bigger is a corrupt stream.
+    public static final int MAX_HELLO_LENGTH = 4096; // A hello only carries a session token, so no one gets a big buffer before saying who he is.
+
+    private Frames(){}
+
+    public static void write(DataOutputStream outputStream, WireCodec codec, Object object) throws IOException {
+        outputStream.write(codec.encodeFrame(object));
+    }
+
+    // Blocks until a whole frame has arrived. Throws EOFException when the other side closes the connection.
+    public static Object read(DataInputStream inputStream, WireCodec codec) throws IOException {
+        byte[] body = readBody(inputStream);
+        return codec.decode(body, 0, body.length);
+    }
+
+    // Like read, but leaves the body encoded, for a reader that wants to know its size.
+    public static byte[] readBody(DataInputStream inputStream) throws IOException {
+        return readBody(inputStream, MAX_FRAME_LENGTH);
+    }
+
+    public static byte[] readBody(DataInputStream inputStream, int maxLength) throws IOException {
+        int length = inputStream.readInt();
+        if(length < 0 || length > maxLength){
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[length];
+        inputStream.readFully(body);
+        return body;
+    }
+}
@@ -0,0 +1,43 @@
+import java.io.Serializable;
+import java.util.List;
+
+// A change to an existing group: who was added, who was removed, and its new name. Sent instead of the whole Group,
+// which would drag the group's entire message history (images and all) along with it.
+public class GroupDelta implements Serializable {
+    private Integer groupID;
+    private List<Integer> addedIDs;
+    private List<Integer> removedIDs;
+    private String newGroupName; // Null if the name didn't change.
+
+    public GroupDelta(Integer groupID, List<Integer> addedIDs, List<Integer> removedIDs, String newGroupName) {
+        this.groupID = groupID;
+        this.addedIDs = addedIDs;
+        this.removedIDs = removedIDs;
+        this.newGroupName = newGroupName;
+    }
+
+    public Integer getGroupID() {
+        return groupID;
+    }
+
+    public List<Integer> getAddedIDs() {
+        return addedIDs;
+    }
+
+    public List<Integer> getRemovedIDs() {
+        return removedIDs;
+    }
+
+    public String getNewGroupName() {
+        return newGroupName;
+    }
+
+    public boolean isEmpty(){
+        return addedIDs.isEmpty() && removedIDs.isEmpty() && newGroupName == null;
+    }
+
+    @Override
+    public String toString(){
+        return "Group " + groupID + ": +" + addedIDs + " -" + removedIDs + (newGroupName == null ? "" : " renamed " + newGroupName);
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.*;
+
+// Server-side record of which clients belong to which group, built from the Groups the server relays. Lets the server
+// send a Message or Group only to the clients that care about it instead of to every connected client. Also keeps each
+// group's name so a GroupDelta can be applied without the client resending the whole Group.
+public class GroupRoutingTable {
+    private Map<Integer, Set<Integer>> groupMembers; // Group ID -> IDs of the clients in that group.
+    private Map<Integer, String> groupNames;
+
+    public GroupRoutingTable(){
+        groupMembers = new HashMap<Integer, Set<Integer>>();
+        groupNames = new HashMap<Integer, String>();
+    }
+
+    // Number of groups the server knows of.
+    public synchronized int size(){
+        return groupMembers.size();
+    }
+
+    // Returns the clients a message for this group should be written to. Empty if the server has never seen the group.
+    public synchronized Set<Integer> getMembers(int groupID){
+        Set<Integer> members = groupMembers.get(groupID);
+        return members == null ? Collections.<Integer>emptySet() : new HashSet<Integer>(members);
+    }
+
+    // Records the new member list of a group and returns everyone who has to hear about the change: the old members
+    // (so the ones that were removed can drop the group) and the new members (so the ones that were added can show it).
+    public synchronized Set<Integer> update(Group group){
+        Set<Integer> recipients = new HashSet<Integer>(group.getClientIDs());
+        Set<Integer> oldMembers = groupMembers.put(group.getGroupID(), new HashSet<Integer>(group.getClientIDs()));
+        groupNames.put(group.getGroupID(), group.getGroupName());
+        if(oldMembers != null){
+            recipients.addAll(oldMembers);
+        }
+        if(group.getClientIDs().isEmpty()){ // Nobody left in the group. Nothing will ever be routed to it again.
+            remove(group.getGroupID());
+        }
+        return recipients;
+    }
+
+    // Applies a delta to a group the server knows. Returns null if it doesn't know the group.
+    public synchronized GroupChange apply(GroupDelta delta){
+        Set<Integer> members = groupMembers.get(delta.getGroupID());
+        if(members == null){
+            return null;
+        }
+        Set<Integer> oldMembers = new HashSet<Integer>(members);
+        members.removeAll(delta.getRemovedIDs());
+        members.addAll(delta.getAddedIDs());
+        if(delta.getNewGroupName() != null){
+            groupNames.put(delta.getGroupID(), delta.getNewGroupName());
+        }
+        // Members joining have no copy to apply the delta to, so they get the group itself (without its history).
+        Group snapshot = new Group(new ArrayList<Integer>(members), groupNames.get(delta.getGroupID()));
+        snapshot.setGroupID(delta.getGroupID());
+        if(members.isEmpty()){
+            remove(delta.getGroupID());
+        }
+        return new GroupChange(oldMembers, snapshot);
+    }
+
+    private void remove(int groupID){
+        groupMembers.remove(groupID);
+        groupNames.remove(groupID);
+    }
+
+    // Result of applying a delta: who was in the group before and what it looks like now.
+    public static class GroupChange {
+        private Set<Integer> oldMembers;
+        private Group snapshot;
+
+        GroupChange(Set<Integer> oldMembers, Group snapshot){
+            this.oldMembers = oldMembers;
+            this.snapshot = snapshot;
+        }
+
+        public Set<Integer> getOldMembers(){
+            return oldMembers;
+        }
+
+        public Group getSnapshot(){
+            return snapshot;
+        }
+
+        // Members who weren't in the group before the delta.
+        public List<Integer> getJoinedMembers(){
+            List<Integer> joined = new ArrayList<Integer>(snapshot.getClientIDs());
+            joined.removeAll(oldMembers);
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.io.Serializable;
+
+// The first frame a client sends once the codec is agreed. Carries the session token the server gave him last time,
+// or null if he has none, and the server answers with a Welcome.
+public class Hello implements Serializable {
+    private String sessionToken;
+
+    public Hello(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    @Override
+    public String toString(){
+        return sessionToken == null ? "Hello" : "Hello again";
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+import java.util.List;
+
+// The server's answer to a HistoryRequest. Messages are oldest first and carry their sequence numbers. complete means
+// there is nothing further in the direction asked for, so the client can stop asking.
+public class HistoryPage implements Serializable {
+    private int groupID;
+    private long cursor; // The cursor of the request this answers.
+    private boolean older;
+    private List<Message> messages;
+    private boolean complete;
+
+    public HistoryPage(int groupID, long cursor, boolean older, List<Message> messages, boolean complete) {
+        this.groupID = groupID;
+        this.cursor = cursor;
+        this.older = older;
+        this.messages = messages;
+        this.complete = complete;
+    }
+
+    public int getGroupID() {
+        return groupID;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    public boolean isOlder() {
+        return older;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString(){
+        return "History page of group " + groupID + ": " + messages.size() + " messages" + (complete ? " (complete)" : "");
+    }
+}
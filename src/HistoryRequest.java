@@ -0,0 +1,40 @@
+import java.io.Serializable;
+
+// Sent by a client that wants a page of a group's history: up to limit messages just before (older) or just after
+// (newer) a sequence number. The server answers with a HistoryPage.
+public class HistoryRequest implements Serializable {
+    public static final long LATEST = Long.MAX_VALUE; // Cursor for "older than everything", i.e. the newest page.
+
+    private int groupID;
+    private long cursor;
+    private boolean older;
+    private int limit;
+
+    public HistoryRequest(int groupID, long cursor, boolean older, int limit) {
+        this.groupID = groupID;
+        this.cursor = cursor;
+        this.older = older;
+        this.limit = limit;
+    }
+
+    public int getGroupID() {
+        return groupID;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    public boolean isOlder() {
+        return older;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString(){
+        return "History of group " + groupID + (older ? " before " : " after ") + cursor + " (" + limit + ")";
+    }
+}
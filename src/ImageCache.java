@@ -0,0 +1,47 @@
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Decoded images by attachment hash, so redrawing a group only decodes images that are new or were evicted. Bounded by
+// the memory the decoded pixels take (4 bytes each), least recently shown first out. -Dchat.imageCacheBytes sets the
+// bound (128 MB by default).
+public class ImageCache {
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("chat.imageCacheBytes", 128L * 1024 * 1024);
+
+    private long maxBytes;
+    private long bytes;
+    private LinkedHashMap<String, Image> images; // Access order, so iteration starts at the least recently used.
+
+    public ImageCache(long maxBytes){
+        this.maxBytes = maxBytes;
+        this.images = new LinkedHashMap<String, Image>(64, 0.75f, true);
+    }
+
+    // Returns the decoded image, or null if it has to be decoded (again).
+    public synchronized Image get(String hash){
+        return images.get(hash);
+    }
+
+    public synchronized void put(String hash, Image image){
+        Image old = images.put(hash, image);
+        if(old != null){
+            bytes -= weigh(old);
+        }
+        bytes += weigh(image);
+        Iterator<Map.Entry<String, Image>> iterator = images.entrySet().iterator();
+        while(bytes > maxBytes && iterator.hasNext()){
+            Map.Entry<String, Image> eldest = iterator.next();
+            if(eldest.getValue() == image){
+                continue; // Never evict what we are about to show, even if it alone is over the bound.
+            }
+            bytes -= weigh(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long weigh(Image image){
+        return 4L * (long) image.getWidth() * (long) image.getHeight();
+    }
+}
@@ -0,0 +1,145 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleConsumer;
+
+// Turns the image files a user picked into bytes to upload, off the JavaFX thread and several files at a time.
+// Files that are already compressed and small enough are sent exactly as they are on disk. Only images bigger than
+// -Dchat.maxImageDimension (2048 by default) on a side are decoded, scaled down and encoded again.
+public class ImageUploader {
+    public static final int MAX_DIMENSION = Integer.getInteger("chat.maxImageDimension", 2048);
+
+    private ExecutorService executor;
+    private DoubleConsumer progressListener; // Told the fraction of files in flight that are done. Called on a background thread.
+    private int filesQueued; // Since the last time everything in flight was done.
+    private int filesDone;
+
+    public ImageUploader(DoubleConsumer progressListener){
+        this.progressListener = progressListener;
+        executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+            Thread thread = new Thread(runnable, "image-uploader");
+            thread.setDaemon(true); // Don't keep the client alive after the window closes.
+            return thread;
+        });
+    }
+
+    // Prepares all files in parallel. The result keeps the files' order. Files that can't be read are left out.
+    public CompletableFuture<List<PreparedImage>> prepare(List<File> files){
+        List<CompletableFuture<PreparedImage>> futures = new ArrayList<CompletableFuture<PreparedImage>>();
+        synchronized (this){
+            filesQueued += files.size();
+        }
+        for(File file : files){
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return prepare(file);
+                } catch (IOException | RuntimeException e) { // A corrupt file can make a decoder throw anything.
+                    EventLog.warn("Could not add image from file {}: {}", file, e);
+                    return null;
+                } finally {
+                    fileDone();
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<PreparedImage> images = new ArrayList<PreparedImage>();
+            for(CompletableFuture<PreparedImage> future : futures){
+                if(future.join() != null){
+                    images.add(future.join());
+                }
+            }
+            return images;
+        });
+    }
+
+    private synchronized void fileDone(){
+        filesDone++;
+        progressListener.accept((double) filesDone / filesQueued);
+        if(filesDone == filesQueued){ // Everything in flight is done. Start counting afresh.
+            filesDone = filesQueued = 0;
+        }
+    }
+
+    private static PreparedImage prepare(File file) throws IOException {
+        String fileType = file.getName().substring(file.getName().lastIndexOf(".") + 1).toLowerCase();
+        Dimension size = readSize(file);
+        if(size == null){
+            throw new IOException("Not an image");
+        }
+        if(size.width <= MAX_DIMENSION && size.height <= MAX_DIMENSION && isCompressed(fileType)){
+            return new PreparedImage(Files.readAllBytes(file.toPath()), fileType); // Already fine as it is. No decode/encode round trip.
+        }
+        BufferedImage image = ImageIO.read(file);
+        if(image == null){
+            throw new IOException("Could not decode");
+        }
+        double scale = Math.min(1, Math.min((double) MAX_DIMENSION / image.getWidth(), (double) MAX_DIMENSION / image.getHeight()));
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        String outputType = hasAlpha ? "png" : "jpg"; // JPEG has no transparency.
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ImageIO.write(scaled, outputType, byteArrayOutputStream);
+        return new PreparedImage(byteArrayOutputStream.toByteArray(), outputType);
+    }
+
+    // Reads an image's size from its header, without decoding the pixels.
+    private static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(file)) {
+            if(imageInputStream == null){
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if(!readers.hasNext()){
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean isCompressed(String fileType){
+        return fileType.equals("png") || fileType.equals("jpg") || fileType.equals("jpeg") || fileType.equals("gif");
+    }
+
+    // Bytes ready to upload and the format they are in.
+    public static class PreparedImage {
+        private byte[] bytes;
+        private String fileType;
+
+        PreparedImage(byte[] bytes, String fileType){
+            this.bytes = bytes;
+            this.fileType = fileType;
+        }
+
+        public byte[] getBytes(){
+            return bytes;
+        }
+
+        public String getFileType(){
+            return fileType;
+        }
+    }
+}
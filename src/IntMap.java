@@ -0,0 +1,277 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+// A concurrent map from int keys to non-null values, for the server's registries of clients. Keys aren't boxed and a
+// lookup touches two arrays instead of a chain of nodes. The keys are split over stripes, each an open-addressing table
+// with its own lock: writers to different stripes never wait for each other, and readers don't lock at all unless a
+// writer was in their stripe at the same time.
+public class IntMap<V> {
+    private static final int STRIPE_BITS = 4; // 16 stripes.
+
+    private Stripe[] stripes;
+
+    public IntMap(){
+        stripes = new Stripe[1 << STRIPE_BITS];
+        for(int i = 0; i < stripes.length; i++){
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key){
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        Object value = stripe.find(key, hash);
+        if(!stripe.lock.validate(stamp)){ // A writer changed the stripe while we looked. Look again, this time locked.
+            stamp = stripe.lock.readLock();
+            try {
+                value = stripe.find(key, hash);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return (V) value;
+    }
+
+    public boolean containsKey(int key){
+        return get(key) != null;
+    }
+
+    // Returns the value the key had, or null if it had none.
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value){
+        return (V) write(key, value, false);
+    }
+
+    // Only puts the value if the key has none. Returns the value it already had, or null if this one was put.
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(int key, V value){
+        return (V) write(key, value, true);
+    }
+
+    // Returns the value the key had, or null if it had none.
+    @SuppressWarnings("unchecked")
+    public V remove(int key){
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            return (V) stripe.remove(key, hash);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    // Removes the key only if it still maps to this value (the same object). Returns true if it did.
+    public boolean remove(int key, V value){
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            if(stripe.find(key, hash) != value){
+                return false;
+            }
+            stripe.remove(key, hash);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size(){
+        int size = 0;
+        for(Stripe stripe : stripes){
+            long stamp = stripe.lock.readLock();
+            size += stripe.size;
+            stripe.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    // Snapshot of the keys. Each stripe is copied under its lock, so keys added or removed meanwhile may or may not be in it.
+    public int[] keys(){
+        int[] keys = new int[0];
+        int count = 0;
+        for(Stripe stripe : stripes){
+            long stamp = stripe.lock.readLock();
+            try {
+                if(count + stripe.size > keys.length){
+                    keys = Arrays.copyOf(keys, Math.max(keys.length * 2, count + stripe.size));
+                }
+                for(int i = 0; i < stripe.values.length; i++){
+                    if(stripe.values[i] != null){
+                        keys[count++] = stripe.keys[i];
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    // Snapshot of the values, in the same sense as keys().
+    @SuppressWarnings("unchecked")
+    public List<V> values(){
+        List<V> values = new ArrayList<V>();
+        for(Stripe stripe : stripes){
+            long stamp = stripe.lock.readLock();
+            try {
+                for(Object value : stripe.values){
+                    if(value != null){
+                        values.add((V) value);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return values;
+    }
+
+    public void clear(){
+        for(Stripe stripe : stripes){
+            long stamp = stripe.lock.writeLock();
+            try {
+                stripe.keys = new int[Stripe.INITIAL_CAPACITY];
+                stripe.values = new Object[Stripe.INITIAL_CAPACITY];
+                stripe.size = 0;
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private Object write(int key, Object value, boolean onlyIfAbsent){
+        if(value == null){
+            throw new NullPointerException("IntMap values can't be null");
+        }
+        int hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            return stripe.put(key, hash, value, onlyIfAbsent);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    private Stripe stripeFor(int hash){
+        return stripes[hash >>> (32 - STRIPE_BITS)]; // Top bits pick the stripe, bottom bits the slot within it.
+    }
+
+    // Murmur3's finalizer. Client and group IDs are consecutive, so spread them over stripes and slots.
+    static int hash(int key){
+        int hash = key;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    // Linear probing table. A slot is empty when its value is null. Removal shifts later entries back instead of
+    // leaving tombstones, so lookups never slow down as clients come and go.
+    static class Stripe {
+        static final int INITIAL_CAPACITY = 8;
+
+        final StampedLock lock = new StampedLock();
+        int[] keys = new int[INITIAL_CAPACITY];
+        Object[] values = new Object[INITIAL_CAPACITY];
+        int size;
+
+        // Safe to call without the lock as long as the caller validates afterwards: it only reads, and stops after one
+        // pass over the table even if writers make it inconsistent.
+        Object find(int key, int hash){
+            int[] keys = this.keys;
+            Object[] values = this.values;
+            if(keys.length != values.length){
+                return null; // Caught in the middle of a resize. Validation fails and the caller retries.
+            }
+            int mask = keys.length - 1;
+            for(int i = 0, index = hash & mask; i < keys.length; i++, index = (index + 1) & mask){
+                Object value = values[index];
+                if(value == null){
+                    return null;
+                }
+                if(keys[index] == key){
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        Object put(int key, int hash, Object value, boolean onlyIfAbsent){
+            if((size + 1) * 4 > keys.length * 3){ // Keep at most 3/4 full, so probes stay short.
+                resize();
+            }
+            int mask = keys.length - 1;
+            int index = hash & mask;
+            while(values[index] != null){
+                if(keys[index] == key){
+                    Object old = values[index];
+                    if(!onlyIfAbsent){
+                        values[index] = value;
+                    }
+                    return old;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+            size++;
+            return null;
+        }
+
+        Object remove(int key, int hash){
+            int mask = keys.length - 1;
+            int index = hash & mask;
+            while(values[index] != null && keys[index] != key){
+                index = (index + 1) & mask;
+            }
+            Object old = values[index];
+            if(old == null){
+                return null;
+            }
+            values[index] = null;
+            size--;
+            // Close the gap: move back every following entry whose home slot is at or before the gap.
+            int gap = index;
+            for(int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask){
+                int home = hash(keys[next]) & mask;
+                boolean movable = next > gap ? (home <= gap || home > next) : (home <= gap && home > next);
+                if(movable){
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    values[next] = null;
+                    gap = next;
+                }
+            }
+            return old;
+        }
+
+        private void resize(){
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            int[] newKeys = new int[oldKeys.length * 2];
+            Object[] newValues = new Object[oldKeys.length * 2];
+            int mask = newKeys.length - 1;
+            for(int i = 0; i < oldKeys.length; i++){
+                if(oldValues[i] != null){
+                    int index = hash(oldKeys[i]) & mask;
+                    while(newValues[index] != null){
+                        index = (index + 1) & mask;
+                    }
+                    newKeys[index] = oldKeys[i];
+                    newValues[index] = oldValues[i];
+                }
+            }
+            values = newValues; // An optimistic reader may see either array new and the other old, in any order. find()
+            keys = newKeys;     // gives up on mismatched lengths and the caller's validate() fails, since we hold the lock.
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A concurrent set of ints, backed by an IntMap. Used for the server's list of registered users, which clients
+// toggle on and off from many reader threads at once.
+public class IntSet {
+    private IntMap<Boolean> map;
+
+    public IntSet(){
+        map = new IntMap<Boolean>();
+    }
+
+    // Returns true if the value wasn't in the set yet.
+    public boolean add(int value){
+        return map.putIfAbsent(value, Boolean.TRUE) == null;
+    }
+
+    // Returns true if the value was in the set.
+    public boolean remove(int value){
+        return map.remove(value) != null;
+    }
+
+    public boolean contains(int value){
+        return map.containsKey(value);
+    }
+
+    public int size(){
+        return map.size();
+    }
+
+    // Snapshot of the set, smallest first. IDs are handed out in increasing order, so this is also the order they joined in.
+    public List<Integer> toList(){
+        int[] values = map.keys();
+        Arrays.sort(values);
+        List<Integer> list = new ArrayList<Integer>(values.length);
+        for(int value : values){
+            list.add(value);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString(){
+        return toList().toString();
+    }
+}
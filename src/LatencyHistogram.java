@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of latencies (or any positive longs) in buckets that are about 3% wide whatever the magnitude, so a
+// percentile from a nanosecond to an hour costs the same 2048 counters and recording is one increment. Many threads
+// can record at once. Percentiles are the top of their bucket, so they are never reported lower than they were.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5; // 32 buckets per power of two.
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private AtomicLongArray counts;
+    private AtomicLong count;
+    private AtomicLong max;
+
+    public LatencyHistogram(){
+        counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        count = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    // The value at or below which the given fraction (0.5 for the median, 0.999 for p999) of recorded values fall.
+    // Zero if nothing was recorded.
+    public long percentile(double fraction){
+        long total = count.get();
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get(); // Counts were recorded while we looked.
+    }
+
+    // Values below 64 get a bucket each. Above that, a value keeps its top 6 bits: the power of two picks a group of
+    // 32 buckets and the next 5 bits pick one within it.
+    static int bucketOf(long value){
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if(bits <= SUB_BUCKET_BITS + 1){
+            return (int) value;
+        }
+        int shift = bits - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long upperBoundOf(int bucket){
+        if(bucket < 2 * SUB_BUCKETS){
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
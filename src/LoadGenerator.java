@@ -0,0 +1,236 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// A headless stand-in for thousands of ClientMains, to see how the server holds up under load. Every simulated user
+// has his own connection and speaks the same protocol as the real client: hello, register, make groups, send
+// messages (some with an image), read everything the server sends and fetch every image they haven't seen yet, like
+// a client with every group open. Each message carries the time it was sent, so
+// every member that receives it records how long delivery took. After a warmup, it reports messages sent and
+// delivered per second and delivery latency percentiles, all from the same run.
+//
+// Start the server first, then for example:
+//   java -Dchat.load.users=2000 -Dchat.load.rate=5000 -Dchat.threads=virtual LoadGenerator
+//
+// -Dchat.load.host       server to load (default localhost; latencies only make sense on the same computer)
+// -Dchat.port            its port (default 8000)
+// -Dchat.load.users      simulated users (default 1000)
+// -Dchat.load.groups     groups each user is in (default 4)
+// -Dchat.load.groupSize  members per group (default 8)
+// -Dchat.load.rate       messages per second, from all users together (default 1000)
+// -Dchat.load.bytes      characters of text per message (default 100)
+// -Dchat.load.images     fraction of messages that carry an image (default 0.05)
+// -Dchat.load.imageBytes size of each user's image (default 50000)
+// -Dchat.load.warmup     seconds to run before measuring (default 10)
+// -Dchat.load.seconds    seconds to measure (default 30)
+// -Dchat.threads=virtual reads with virtual threads, like the server (Java 21+)
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("chat.load.host", "localhost");
+    private static final int PORT = Integer.getInteger("chat.port", ServerConfig.DEFAULT_PORT);
+    private static final int USERS = Integer.getInteger("chat.load.users", 1000);
+    private static final int GROUPS_PER_USER = Integer.getInteger("chat.load.groups", 4);
+    private static final int GROUP_SIZE = Math.min(Integer.getInteger("chat.load.groupSize", 8), USERS);
+    private static final double RATE = Double.parseDouble(System.getProperty("chat.load.rate", "1000"));
+    private static final int MESSAGE_BYTES = Integer.getInteger("chat.load.bytes", 100);
+    private static final double IMAGE_FRACTION = Double.parseDouble(System.getProperty("chat.load.images", "0.05"));
+    private static final int IMAGE_BYTES = Integer.getInteger("chat.load.imageBytes", 50000);
+    private static final int WARMUP_SECONDS = Integer.getInteger("chat.load.warmup", 10);
+    private static final int MEASURE_SECONDS = Integer.getInteger("chat.load.seconds", 30);
+
+    private List<User> users;
+    private volatile CountDownLatch memberships; // One count per (group, member), released as members learn of their groups.
+    private volatile LatencyHistogram latencies; // Replaced when measuring starts, so the warmup doesn't count.
+    private LongAdder sent, delivered, failed, imagesFetched;
+    private String padding;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0); // Readers are still blocked on their sockets.
+    }
+
+    public LoadGenerator(){
+        users = new ArrayList<User>(USERS);
+        latencies = new LatencyHistogram();
+        sent = new LongAdder();
+        delivered = new LongAdder();
+        failed = new LongAdder();
+        imagesFetched = new LongAdder();
+        char[] filler = new char[MESSAGE_BYTES];
+        Arrays.fill(filler, 'x');
+        padding = new String(filler);
+    }
+
+    public void run() throws Exception {
+        System.out.println("Connecting " + USERS + " users to " + HOST + ":" + PORT);
+        for(int i = 0; i < USERS; i++){
+            User user = new User();
+            user.connect();
+            users.add(user);
+        }
+
+        int groupCount = Math.max(1, USERS * GROUPS_PER_USER / GROUP_SIZE);
+        memberships = new CountDownLatch(groupCount * GROUP_SIZE);
+        System.out.println("Making " + groupCount + " groups of " + GROUP_SIZE);
+        for(int g = 0; g < groupCount; g++){
+            List<Integer> members = new ArrayList<Integer>();
+            for(int m = 0; m < GROUP_SIZE; m++){
+                members.add(users.get((g * GROUP_SIZE + m) % USERS).clientID); // Consecutive slices, wrapping around, so everyone is in about the same number of groups.
+            }
+            users.get((g * GROUP_SIZE) % USERS).send(new Group(members, "load " + g));
+        }
+        if(!memberships.await(60, TimeUnit.SECONDS)){
+            System.out.println("Only " + (groupCount * GROUP_SIZE - memberships.getCount()) + " of " + groupCount * GROUP_SIZE + " memberships arrived. Going on anyway.");
+        }
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long periodNanos = (long) (USERS * 1e9 / RATE); // Each user sends once a period, so together they send RATE a second.
+        Random random = new Random();
+        for(User user : users){
+            senders.scheduleAtFixedRate(user::sendMessage, (long) (random.nextDouble() * periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        System.out.println("Warming up for " + WARMUP_SECONDS + " s");
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        latencies = new LatencyHistogram();
+        sent.reset();
+        delivered.reset();
+        imagesFetched.reset();
+        long start = System.nanoTime();
+        System.out.println("Measuring for " + MEASURE_SECONDS + " s");
+        Thread.sleep(MEASURE_SECONDS * 1000L);
+        long elapsed = System.nanoTime() - start;
+        LatencyHistogram measured = latencies;
+        long sentCount = sent.sum(), deliveredCount = delivered.sum(), imageCount = imagesFetched.sum();
+        senders.shutdownNow();
+
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("Sent      %,d messages, %,.0f/s (asked for %,.0f/s)", sentCount, sentCount / seconds, RATE));
+        System.out.println(String.format("Delivered %,d messages, %,.0f/s", deliveredCount, deliveredCount / seconds));
+        if(IMAGE_FRACTION > 0){
+            System.out.println(String.format("Fetched   %,d images, %,.0f/s", imageCount, imageCount / seconds));
+        }
+        System.out.println(String.format("Latency   p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms",
+                measured.percentile(0.5) / 1e6, measured.percentile(0.99) / 1e6, measured.percentile(0.999) / 1e6, measured.getMax() / 1e6));
+        if(failed.sum() > 0){
+            System.out.println("Connections lost: " + failed.sum());
+        }
+    }
+
+    // One simulated client: a socket, a reader thread, and the groups the server has told him he's in.
+    class User implements Runnable {
+        private DataInputStream inputFromServer;
+        private DataOutputStream outputToServer; // Shared by the sender threads. Guarded by this.
+        private WireCodec codec;
+        private int clientID;
+        private List<Integer> groupIDs = new CopyOnWriteArrayList<Integer>();
+        private Attachment image; // Uploaded once, then attached to IMAGE_FRACTION of his messages.
+        private byte[] imageBytes; // Sent again if the server asks for them.
+        private Set<String> seenImages = new HashSet<String>(); // Hashes already fetched or asked for. Reader thread only.
+        private volatile boolean connected;
+
+        void connect() throws IOException {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(HOST, PORT), 5000);
+            socket.setTcpNoDelay(true);
+            inputFromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputToServer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            codec = WireCodec.negotiate(outputToServer, inputFromServer, WireCodec.preferred());
+            send(new Hello(null)); // Always a new session: every run gets fresh users.
+            Object welcome = Frames.read(inputFromServer, codec);
+            if(!(welcome instanceof Welcome)){
+                throw new IOException("Expected a welcome, got " + welcome);
+            }
+            clientID = ((Welcome) welcome).getClientID();
+            connected = true;
+            ServerThreads.start(this, "load-user-" + clientID);
+            send(clientID); // Register, like a real client.
+            if(IMAGE_FRACTION > 0){
+                byte[] bytes = new byte[IMAGE_BYTES];
+                new Random(clientID).nextBytes(bytes);
+                String hash = Attachment.hash(bytes);
+                send(new AttachmentData(hash, bytes));
+                image = new Attachment(hash, bytes.length, "png");
+                imageBytes = bytes;
+            }
+        }
+
+        void send(Object object) throws IOException {
+            synchronized (this){
+                Frames.write(outputToServer, codec, object);
+                outputToServer.flush();
+            }
+        }
+
+        // Called by the scheduler once a period. The send time goes in the text, before the padding.
+        void sendMessage(){
+            if(!connected || groupIDs.isEmpty()){
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int groupID = groupIDs.get(random.nextInt(groupIDs.size()));
+            List<Attachment> attachments = random.nextDouble() < IMAGE_FRACTION ? new ArrayList<Attachment>(Collections.singletonList(image)) : null;
+            try {
+                send(new Message(groupID, clientID, System.nanoTime() + "|" + padding, attachments));
+                sent.increment();
+            } catch (IOException e) {
+                lost(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true){
+                    Object data = Frames.read(inputFromServer, codec);
+                    if(data instanceof Message){
+                        Message message = (Message) data;
+                        if(message.getSenderID() != clientID){ // Our own copy is an echo, not a delivery.
+                            String text = message.getMessage();
+                            latencies.record(System.nanoTime() - Long.parseLong(text.substring(0, text.indexOf('|'))));
+                            delivered.increment();
+                            fetchUnseen(message.getAttachments());
+                        }
+                    }else if(data instanceof AttachmentData){
+                        imagesFetched.increment();
+                    }else if(data instanceof AttachmentRequest){ // The server lost our image, e.g. it was restarted.
+                        if(image != null && image.getHash().equals(((AttachmentRequest) data).getHash())){
+                            send(new AttachmentData(image.getHash(), imageBytes));
+                        }
+                    }else if(data instanceof Group){
+                        Group group = (Group) data;
+                        if(!groupIDs.contains(group.getGroupID())){
+                            groupIDs.add(group.getGroupID());
+                            memberships.countDown();
+                        }
+                    }
+                    // Presence and the rest: read and dropped, like a client that isn't looking.
+                }
+            } catch (IOException e) {
+                lost(e);
+            }
+        }
+
+        // Asks for the bytes of every image we haven't seen, so image traffic flows both ways as with real clients.
+        private void fetchUnseen(List<Attachment> attachments) throws IOException {
+            if(attachments == null){
+                return;
+            }
+            for(Attachment attachment : attachments){
+                if(seenImages.add(attachment.getHash())){
+                    send(new AttachmentRequest(attachment.getHash()));
+                }
+            }
+        }
+
+        private void lost(IOException e){
+            if(connected){
+                connected = false;
+                failed.increment();
+                System.out.println("User " + clientID + " lost his connection: " + e.getMessage());
+            }
+        }
+    }
+}
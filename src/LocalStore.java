@@ -0,0 +1,356 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A client's groups, messages and image bytes on disk, so a restarted client can show what it had right away and only
+// ask the server for what is newer. One directory per profile: -Dchat.profile (default "default") under -Dchat.localDir
+// (default ~/.chat). A profile is locked while a client uses it, so a second client started with the same profile gets
+// the next free one ("default-2", ...) and with it his own session, instead of resuming as the first.
+//
+// groups.log holds the membership and name of every group we're in, compacted each time it's loaded. Each group's
+// messages are appended to group-<id>.log in sequence order, and group-<id>.idx holds a (sequence, offset) pair per
+// message, so a page of messages is found with a binary search and read without scanning. Image bytes are one file
+// per hash. Message files are only touched on the store's own thread, so opening a group never waits on the disk.
+public class LocalStore {
+    private static final byte GROUP_SAVED = 1;
+    private static final byte GROUP_REMOVED = 2;
+    private static final int MAX_PROFILES = 100;
+
+    private File directory;
+    private File attachmentDirectory;
+    private ExecutorService executor; // Every message file read and write happens here, one at a time.
+    private Map<Integer, MessageFile> messageFiles; // Store thread only.
+    private DataOutputStream groupsLog; // Store thread only.
+    private FileLock lock; // Held on the profile for as long as we run. Null for a throwaway store.
+
+    public LocalStore(File directory) throws IOException {
+        this.directory = directory;
+        this.attachmentDirectory = new File(directory, "attachments");
+        if(!attachmentDirectory.isDirectory() && !attachmentDirectory.mkdirs()){
+            throw new IOException("Could not create " + attachmentDirectory);
+        }
+        this.messageFiles = new HashMap<Integer, MessageFile>();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "local-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The store of the first profile no other client is using, locked until this process exits.
+    public static LocalStore openProfile() throws IOException {
+        File localDirectory = new File(System.getProperty("chat.localDir", System.getProperty("user.home") + File.separator + ".chat"));
+        String profile = System.getProperty("chat.profile", "default");
+        for(int i = 1; i <= MAX_PROFILES; i++){
+            File directory = new File(localDirectory, i == 1 ? profile : profile + "-" + i);
+            if(!directory.isDirectory() && !directory.mkdirs()){
+                throw new IOException("Could not create " + directory);
+            }
+            FileChannel lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) { // This process already has it.
+                lock = null;
+            }
+            if(lock != null){
+                LocalStore store = new LocalStore(directory);
+                store.lock = lock; // Released when the process exits.
+                return store;
+            }
+            lockChannel.close();
+        }
+        throw new IOException("Every profile up to " + profile + "-" + MAX_PROFILES + " is in use");
+    }
+
+    // The groups we were in when we last ran, each with only its newest message (for the side view preview). The rest
+    // are paged in from disk when the group is opened.
+    public CompletableFuture<List<Group>> loadGroups(){
+        return CompletableFuture.supplyAsync(() -> {
+            Map<Integer, Group> groups = new LinkedHashMap<Integer, Group>();
+            File groupsFile = new File(directory, "groups.log");
+            if(groupsFile.exists()){
+                try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(groupsFile)))) {
+                    while(true){
+                        byte kind = inputStream.readByte();
+                        if(kind == GROUP_SAVED){
+                            Group group = WireCodec.BinaryCodec.readGroup(inputStream);
+                            groups.remove(group.getGroupID()); // Re-insert, so the most recently changed groups come last.
+                            groups.put(group.getGroupID(), group);
+                        }else{
+                            groups.remove(inputStream.readInt());
+                        }
+                    }
+                } catch (EOFException e) {
+                    // End of the log, or a record cut short when we last quit. Compacting below drops it.
+                } catch (IOException e) {
+                    EventLog.warn("Could not read local groups: {}", e.getMessage());
+                }
+            }
+            try {
+                compactGroupsLog(groups.values());
+                for(Group group : groups.values()){
+                    MessageFile messageFile = messageFile(group.getGroupID());
+                    if(messageFile.count > 0){
+                        group.addMessage(messageFile.read(messageFile.count - 1));
+                    }
+                }
+            } catch (IOException e) {
+                EventLog.warn("Could not load local messages: {}", e.getMessage());
+            }
+            return new ArrayList<Group>(groups.values());
+        }, executor);
+    }
+
+    // Records a group's current membership and name. Only pass a copy: the store writes it later on its own thread.
+    public void saveGroup(Group group){
+        executor.execute(() -> {
+            try {
+                groupsLog.writeByte(GROUP_SAVED);
+                WireCodec.BinaryCodec.writeGroup(groupsLog, group);
+                groupsLog.flush();
+            } catch (IOException e) {
+                EventLog.warn("Could not save group {} locally: {}", group.getGroupID(), e.getMessage());
+            }
+        });
+    }
+
+    // Forgets a group we were removed from, messages and all.
+    public void removeGroup(int groupID){
+        executor.execute(() -> {
+            try {
+                groupsLog.writeByte(GROUP_REMOVED);
+                groupsLog.writeInt(groupID);
+                groupsLog.flush();
+                MessageFile messageFile = messageFiles.remove(groupID);
+                if(messageFile != null){
+                    messageFile.close();
+                }
+                Files.deleteIfExists(new File(directory, "group-" + groupID + ".log").toPath());
+                Files.deleteIfExists(new File(directory, "group-" + groupID + ".idx").toPath());
+            } catch (IOException e) {
+                EventLog.warn("Could not remove group {} locally: {}", groupID, e.getMessage());
+            }
+        });
+    }
+
+    // Appends messages to a group's file. Messages not newer than the newest one stored are skipped, so the file stays
+    // in sequence order and a message seen twice is stored once.
+    public void append(int groupID, List<Message> messages){
+        executor.execute(() -> {
+            try {
+                MessageFile messageFile = messageFile(groupID);
+                for(Message message : messages){
+                    if(message.getSequence() > messageFile.lastSequence()){
+                        messageFile.append(message);
+                    }
+                }
+                messageFile.flush();
+            } catch (IOException e) {
+                EventLog.warn("Could not store messages of group {} locally: {}", groupID, e.getMessage());
+            }
+        });
+    }
+
+    // Up to limit stored messages just before a sequence number, as a page that never claims to be complete: the
+    // server may have older ones we never stored. Empty if we have none before the cursor.
+    public CompletableFuture<HistoryPage> pageBefore(int groupID, long cursor, int limit){
+        return CompletableFuture.supplyAsync(() -> {
+            List<Message> messages = new ArrayList<Message>();
+            try {
+                MessageFile messageFile = messageFile(groupID);
+                int end = messageFile.indexOf(cursor);
+                for(int i = Math.max(0, end - limit); i < end; i++){
+                    messages.add(messageFile.read(i));
+                }
+            } catch (IOException e) {
+                EventLog.warn("Could not read messages of group {} locally: {}", groupID, e.getMessage());
+            }
+            return new HistoryPage(groupID, cursor, true, messages, false);
+        }, executor);
+    }
+
+    // The token the server gave us last time, so a restarted client resumes as the same user. Null if we never had one.
+    public String getSessionToken(){
+        try {
+            return new String(Files.readAllBytes(new File(directory, "session").toPath()), "UTF-8").trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void saveSessionToken(String token){
+        try {
+            File temporary = File.createTempFile("session", ".tmp", directory);
+            Files.write(temporary.toPath(), token.getBytes("UTF-8"));
+            Files.move(temporary.toPath(), new File(directory, "session").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            EventLog.warn("Could not store session token locally: {}", e.getMessage());
+        }
+    }
+
+    public boolean hasAttachment(String hash){
+        return Attachment.isHash(hash) && attachmentFile(hash).exists();
+    }
+
+    // Returns the image bytes, or null if we don't have them.
+    public byte[] getAttachment(String hash){
+        if(!Attachment.isHash(hash)){
+            return null;
+        }
+        try {
+            return Files.readAllBytes(attachmentFile(hash).toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a reader never sees half an image.
+    public void putAttachment(String hash, byte[] bytes){
+        if(!Attachment.hash(bytes).equals(hash)){ // Also keeps a bad hash from naming a file outside the store.
+            EventLog.warn("Not storing attachment {} locally: the bytes don't match it", hash);
+            return;
+        }
+        try {
+            File temporary = File.createTempFile(hash, ".tmp", attachmentDirectory);
+            Files.write(temporary.toPath(), bytes);
+            Files.move(temporary.toPath(), attachmentFile(hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            EventLog.warn("Could not store attachment {} locally: {}", hash, e.getMessage());
+        }
+    }
+
+    private File attachmentFile(String hash){
+        return new File(attachmentDirectory, hash);
+    }
+
+    private void compactGroupsLog(Collection<Group> groups) throws IOException {
+        File groupsFile = new File(directory, "groups.log");
+        File compacted = new File(directory, "groups.log.tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+            for(Group group : groups){
+                outputStream.writeByte(GROUP_SAVED);
+                WireCodec.BinaryCodec.writeGroup(outputStream, group);
+            }
+        }
+        Files.move(compacted.toPath(), groupsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        groupsLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(groupsFile, true)));
+    }
+
+    private MessageFile messageFile(int groupID) throws IOException {
+        MessageFile messageFile = messageFiles.get(groupID);
+        if(messageFile == null){
+            messageFile = new MessageFile(groupID);
+            messageFiles.put(groupID, messageFile);
+        }
+        return messageFile;
+    }
+
+    // One group's messages and their index. The index is read into memory when the group is first touched: 16 bytes
+    // per message instead of the messages themselves.
+    class MessageFile {
+        private RandomAccessFile log;
+        private DataOutputStream indexOutput;
+        private long[] sequences;
+        private long[] offsets;
+        private int count;
+
+        MessageFile(int groupID) throws IOException {
+            log = new RandomAccessFile(new File(directory, "group-" + groupID + ".log"), "rw");
+            File indexFile = new File(directory, "group-" + groupID + ".idx");
+            sequences = new long[16];
+            offsets = new long[16];
+            if(indexFile.exists()){
+                try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                    for(long entries = indexFile.length() / 16; count < entries; ){
+                        long sequence = inputStream.readLong();
+                        long offset = inputStream.readLong();
+                        if(offset >= log.length()){
+                            break; // The message itself never made it to disk.
+                        }
+                        add(sequence, offset);
+                    }
+                }
+                if(count > 0 && !isWhole(count - 1)){ // Indexed, but cut short when we last quit.
+                    count--;
+                }
+                if(indexFile.length() != count * 16L){ // Drop whatever is past the last good entry.
+                    try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+                        index.setLength(count * 16L);
+                    }
+                }
+            }
+            indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        }
+
+        long lastSequence(){
+            return count == 0 ? -1 : sequences[count - 1];
+        }
+
+        // Position of the first message with a sequence number of at least the given one, i.e. how many are before it.
+        int indexOf(long sequence){
+            int index = Arrays.binarySearch(sequences, 0, count, sequence);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        private boolean isWhole(int index) throws IOException {
+            if(offsets[index] + 4 > log.length()){
+                return false;
+            }
+            log.seek(offsets[index]);
+            return offsets[index] + 4 + log.readInt() <= log.length();
+        }
+
+        Message read(int index) throws IOException {
+            log.seek(offsets[index]);
+            byte[] body = new byte[log.readInt()];
+            log.readFully(body);
+            Message message = (Message) WireCodec.BINARY.decode(body, 0, body.length);
+            message.setSequence(sequences[index]);
+            return message;
+        }
+
+        void append(Message message) throws IOException {
+            byte[] body = WireCodec.BINARY.encode(message);
+            byte[] record = new byte[4 + body.length];
+            record[0] = (byte) (body.length >>> 24);
+            record[1] = (byte) (body.length >>> 16);
+            record[2] = (byte) (body.length >>> 8);
+            record[3] = (byte) body.length;
+            System.arraycopy(body, 0, record, 4, body.length);
+            long offset = log.length();
+            log.seek(offset);
+            log.write(record); // One write per message.
+            indexOutput.writeLong(message.getSequence());
+            indexOutput.writeLong(offset);
+            add(message.getSequence(), offset);
+        }
+
+        void flush() throws IOException {
+            indexOutput.flush(); // The log is a RandomAccessFile, so its writes are already in the file.
+        }
+
+        void close() throws IOException {
+            log.close();
+            indexOutput.close();
+        }
+
+        private void add(long sequence, long offset){
+            if(count == sequences.length){
+                sequences = Arrays.copyOf(sequences, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            sequences[count] = sequence;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+}
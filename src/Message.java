@@ -5,7 +5,8 @@ public class Message implements Serializable {
     private Integer intendedGroupID;
     private Integer senderID; // So we can make it blue for you to indicate that you sent it.
     private String message;
-    private List<byte[]> images;
+    private List<Attachment> attachments; // Only the hashes. Clients fetch the bytes when they show the images.
+    private long sequence = -1; // Position in the group's server log. Set by the server when it logs the message.
 
     @Override
     public String toString(){
@@ -24,14 +25,22 @@ public class Message implements Serializable {
         return message;
     }
 
-    public List<byte[]> getImages(){
-        return images;
+    public List<Attachment> getAttachments(){
+        return attachments;
     }
 
-    public Message(Integer intendedGroupID, Integer senderID, String message, List<byte[]> images) {
+    public long getSequence(){
+        return sequence;
+    }
+
+    public void setSequence(long sequence){
+        this.sequence = sequence;
+    }
+
+    public Message(Integer intendedGroupID, Integer senderID, String message, List<Attachment> attachments) {
         this.intendedGroupID = intendedGroupID;
         this.senderID = senderID;
         this.message = message;
-        this.images = images;
+        this.attachments = attachments;
     }
 }
\ No newline at end of file
@@ -0,0 +1,484 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Durable history on the server. Every routed Message and group change is appended to its group's log, a directory of
+// segment files named after the sequence number of their first record. Group changes also go to a small groups log
+// that is replayed on startup to rebuild the routing table.
+//
+// Record layout: 4 byte body length, 4 byte CRC32 of the body, then the body in the binary wire codec. Appends go
+// straight to the file and a syncer thread forces all files written since its last pass every -Dchat.logSyncMillis
+// (10 by default), so one fsync covers every record written in that window. Reads memory-map only the records they
+// need, starting from the nearest entry in a sparse in-memory index, so reading a page of recent history only touches
+// that page.
+//
+// A group's log is only opened when it is first used, and a segment's file only while it is in use: at most
+// -Dchat.logOpenSegments (256 by default) are open at once and the syncer closes the least recently used beyond that.
+// Every second or so, and when it is closed, a segment saves the offset it is synced up to in a .tail file next to it.
+// On opening a log, only the records after that offset are checked, and a record cut short by a crash is truncated away.
+public class MessageLog {
+    public static final long DEFAULT_SEGMENT_BYTES = Long.getLong("chat.segmentBytes", 64L * 1024 * 1024);
+    public static final long SYNC_MILLIS = Long.getLong("chat.logSyncMillis", 10);
+    public static final int MAX_OPEN_SEGMENTS = Math.max(1, Integer.getInteger("chat.logOpenSegments", 256));
+    public static final int MAX_PAGE = 500;
+    private static final int INDEX_INTERVAL = 64; // One index entry every this many records.
+    private static final int HEADER_BYTES = 8;
+    private static final int TAIL_BYTES = 20; // Synced size, record count, CRC32 of both.
+    private static final long CHECKPOINT_MILLIS = 1000; // How often a segment being appended to saves its tail.
+
+    private File directory;
+    private long segmentBytes;
+    private Map<Integer, GroupLog> groupLogs; // Groups used since startup.
+    private GroupLog groupsLog; // Group creations and changes only, for rebuilding the routing table.
+    private Set<Segment> unsynced; // Segments written since the syncer last forced them.
+    private LinkedHashMap<Segment, Boolean> openSegments; // Segments with an open file, least recently used first.
+
+    public MessageLog(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.groupLogs = new HashMap<Integer, GroupLog>();
+        this.unsynced = new HashSet<Segment>();
+        this.openSegments = new LinkedHashMap<Segment, Boolean>(16, 0.75f, true);
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create " + directory);
+        }
+        groupsLog = new GroupLog(new File(directory, "groups"));
+        Thread syncer = new Thread(this::syncLoop, "message-log-syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    // Appends a record to a group's log and returns its sequence number within that group.
+    public long append(int groupID, Object record) throws IOException {
+        GroupLog groupLog = groupLog(groupID);
+        if(record instanceof Group || record instanceof GroupDelta){
+            groupsLog.append(record);
+        }
+        return groupLog.append(record);
+    }
+
+    // Every group creation and change ever logged, oldest first.
+    public List<Object> readGroupChanges() throws IOException {
+        List<Object> changes = new ArrayList<Object>();
+        for(LoggedRecord record : groupsLog.read(0, Integer.MAX_VALUE)){
+            changes.add(record.getRecord());
+        }
+        return changes;
+    }
+
+    // Reads up to maxRecords records of a group starting at a sequence number. Each Message read has its sequence set.
+    public List<LoggedRecord> read(int groupID, long fromSequence, int maxRecords) throws IOException {
+        return groupLog(groupID).read(fromSequence, maxRecords);
+    }
+
+    // Answers a history request from the group's log. Pages skip group changes and never hold more than MAX_PAGE
+    // messages, whatever the client asked for.
+    public HistoryPage readPage(HistoryRequest request) throws IOException {
+        int groupID = request.getGroupID();
+        int limit = Math.max(0, Math.min(request.getLimit(), MAX_PAGE));
+        long nextSequence = getNextSequence(groupID);
+        List<Message> messages = new ArrayList<Message>();
+        if(request.isOlder()){
+            long end = Math.min(request.getCursor(), nextSequence);
+            long window = Math.max(limit, 1);
+            while(messages.size() < limit && end > 0){ // Walk back in growing windows until there are enough messages.
+                long from = Math.max(0, end - window);
+                messages.addAll(0, messagesIn(read(groupID, from, (int) (end - from))));
+                end = from;
+                window *= 2;
+            }
+            if(messages.size() > limit){
+                return new HistoryPage(groupID, request.getCursor(), true, new ArrayList<Message>(messages.subList(messages.size() - limit, messages.size())), false);
+            }
+            return new HistoryPage(groupID, request.getCursor(), true, messages, end == 0);
+        }
+        long from = request.getCursor() + 1;
+        while(messages.size() < limit && from < nextSequence){
+            List<LoggedRecord> records = read(groupID, from, limit);
+            for(LoggedRecord record : records){
+                from = record.getSequence() + 1;
+                if(record.getRecord() instanceof Message && messages.size() < limit){
+                    messages.add((Message) record.getRecord());
+                }
+            }
+            if(records.isEmpty()){
+                break;
+            }
+        }
+        return new HistoryPage(groupID, request.getCursor(), false, messages, from >= nextSequence);
+    }
+
+    private static List<Message> messagesIn(List<LoggedRecord> records){
+        List<Message> messages = new ArrayList<Message>();
+        for(LoggedRecord record : records){
+            if(record.getRecord() instanceof Message){
+                messages.add((Message) record.getRecord());
+            }
+        }
+        return messages;
+    }
+
+    // The sequence number the group's next record will get, i.e. how many records it has.
+    public long getNextSequence(int groupID) throws IOException {
+        return groupLog(groupID).getNextSequence();
+    }
+
+    // Doesn't touch the disk. The log is opened by whatever uses it first.
+    private synchronized GroupLog groupLog(int groupID){
+        GroupLog groupLog = groupLogs.get(groupID);
+        if(groupLog == null){
+            groupLog = new GroupLog(new File(directory, "group-" + groupID));
+            groupLogs.put(groupID, groupLog);
+        }
+        return groupLog;
+    }
+
+    private void used(Segment segment){
+        synchronized (openSegments){
+            openSegments.put(segment, Boolean.TRUE);
+        }
+    }
+
+    private List<Segment> leastRecentlyUsedOverLimit(){
+        List<Segment> toClose = new ArrayList<Segment>();
+        synchronized (openSegments){
+            Iterator<Segment> iterator = openSegments.keySet().iterator();
+            while(openSegments.size() - toClose.size() > MAX_OPEN_SEGMENTS && iterator.hasNext()){
+                toClose.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        return toClose;
+    }
+
+    private void syncLoop(){
+        while(true){
+            try {
+                Thread.sleep(SYNC_MILLIS);
+                Set<Segment> toSync;
+                synchronized (unsynced){
+                    toSync = new HashSet<Segment>(unsynced);
+                    unsynced.clear();
+                }
+                for(Segment segment : toSync){
+                    segment.sync(); // One fsync for everything appended to this segment since the last pass.
+                }
+                for(Segment segment : leastRecentlyUsedOverLimit()){ // Not under the list's lock: closing waits for whoever is using it.
+                    segment.close();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                EventLog.warn("Could not sync message log: {}", e.getMessage());
+            }
+        }
+    }
+
+    // One group's log: its segments, oldest first. The last one is the one being appended to.
+    class GroupLog {
+        private File groupDirectory;
+        private List<Segment> segments; // Null until opened.
+        private long nextSequence;
+
+        GroupLog(File groupDirectory){
+            this.groupDirectory = groupDirectory;
+        }
+
+        // Finds the segments and recovers the last one. Only the tail can hold a torn record. Older segments were
+        // complete when they were rolled.
+        private void open() throws IOException {
+            if(segments != null){
+                return;
+            }
+            if(!groupDirectory.isDirectory() && !groupDirectory.mkdirs()){
+                throw new IOException("Could not create " + groupDirectory);
+            }
+            List<Segment> found = new ArrayList<Segment>();
+            File[] files = groupDirectory.listFiles((dir, name) -> name.endsWith(".log"));
+            Arrays.sort(files == null ? new File[0] : files);
+            for(File file : files == null ? new File[0] : files){
+                found.add(new Segment(file, Long.parseLong(file.getName().substring(0, file.getName().length() - 4))));
+            }
+            if(found.isEmpty()){
+                found.add(newSegment(0));
+            }
+            Segment last = found.get(found.size() - 1);
+            nextSequence = last.baseSequence + last.recover();
+            segments = found;
+        }
+
+        synchronized long append(Object record) throws IOException {
+            open();
+            Segment last = segments.get(segments.size() - 1);
+            if(last.size >= segmentBytes){
+                last = newSegment(nextSequence);
+                segments.add(last);
+            }
+            last.append(WireCodec.BINARY.encode(record));
+            synchronized (unsynced){
+                unsynced.add(last);
+            }
+            return nextSequence++;
+        }
+
+        synchronized long getNextSequence() throws IOException {
+            open();
+            return nextSequence;
+        }
+
+        List<LoggedRecord> read(long fromSequence, int maxRecords) throws IOException {
+            List<Segment> segmentsToRead;
+            long endSequence;
+            synchronized (this){
+                open();
+                segmentsToRead = new ArrayList<Segment>(segments);
+                endSequence = nextSequence;
+            }
+            List<LoggedRecord> records = new ArrayList<LoggedRecord>();
+            for(int i = 0; i < segmentsToRead.size() && records.size() < maxRecords && fromSequence < endSequence; i++){
+                Segment segment = segmentsToRead.get(i);
+                long segmentEnd = i + 1 < segmentsToRead.size() ? segmentsToRead.get(i + 1).baseSequence : endSequence;
+                if(fromSequence < segmentEnd){
+                    segment.read(Math.max(fromSequence, segment.baseSequence), segmentEnd, maxRecords - records.size(), records);
+                }
+            }
+            return records;
+        }
+
+        private Segment newSegment(long baseSequence){
+            return new Segment(new File(groupDirectory, String.format("%020d.log", baseSequence)), baseSequence);
+        }
+    }
+
+    // One segment file and a sparse index of where every INDEX_INTERVAL-th record starts in it. The file is opened when
+    // needed and may be closed again by the syncer whenever no one is using it.
+    class Segment {
+        private File file;
+        private long baseSequence;
+        private FileChannel channel; // Null while closed.
+        private long size;
+        private long recordCount; // -1 until counted. Appending needs it, so the last segment's is counted on opening.
+        private List<long[]> index; // {sequence, file position}. Null until first read.
+        private long checkpointedSize; // As saved in the .tail file.
+        private long checkpointMillis;
+
+        Segment(File file, long baseSequence){
+            this.file = file;
+            this.baseSequence = baseSequence;
+            this.size = file.length(); // 0 if it doesn't exist yet.
+            this.recordCount = -1;
+            this.checkpointedSize = -1;
+        }
+
+        private FileChannel channel() throws IOException {
+            if(channel == null){
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            used(this);
+            return channel;
+        }
+
+        // Cuts off anything after the last complete, intact record and returns how many records there are. Records
+        // before the saved tail were synced before it was saved, so only the ones after it are checked.
+        synchronized long recover() throws IOException {
+            FileChannel channel = channel();
+            size = channel.size();
+            long position = 0;
+            long count = 0;
+            long[] tail = readTail();
+            if(tail != null && tail[0] <= size){
+                position = tail[0];
+                count = tail[1];
+                checkpointedSize = position;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while(position + HEADER_BYTES <= size){
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if(length < 0 || position + HEADER_BYTES + length > size){
+                    break; // Torn write.
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                channel.read(body, position + HEADER_BYTES);
+                if(crc(body.array(), 0, length) != checksum){
+                    break; // Corrupt tail.
+                }
+                position += HEADER_BYTES + length;
+                count++;
+            }
+            if(position < size){
+                EventLog.info("Truncating {} bytes of partial record from message log", size - position);
+                channel.truncate(position);
+                channel.force(true);
+                size = position;
+            }
+            recordCount = count;
+            index = null; // Built from the headers when first read.
+            return count;
+        }
+
+        // Reads the record headers from the start, for the sparse index. Everything before size is intact: checked
+        // by recover(), written since, or in an older segment that was complete when it was rolled.
+        private void buildIndex() throws IOException {
+            FileChannel channel = channel();
+            index = new ArrayList<long[]>();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            long position = 0;
+            long count = 0;
+            while(position + HEADER_BYTES <= size){
+                header.clear();
+                channel.read(header, position);
+                if(count % INDEX_INTERVAL == 0){
+                    index.add(new long[]{baseSequence + count, position});
+                }
+                position += HEADER_BYTES + header.getInt(0);
+                count++;
+            }
+            recordCount = count;
+        }
+
+        synchronized void append(byte[] body) throws IOException {
+            if(recordCount < 0){
+                recover();
+            }
+            FileChannel channel = channel();
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + body.length);
+            record.putInt(body.length).putInt(crc(body, 0, body.length)).put(body).flip();
+            if(index != null && recordCount % INDEX_INTERVAL == 0){
+                index.add(new long[]{baseSequence + recordCount, size});
+            }
+            while(record.hasRemaining()){
+                channel.write(record, size + record.position());
+            }
+            size += HEADER_BYTES + body.length;
+            recordCount++;
+        }
+
+        // Adds records [fromSequence, endSequence) to records, at most maxRecords of them. Maps only the records from
+        // the index entry before the first one wanted to the index entry after the last one.
+        synchronized void read(long fromSequence, long endSequence, int maxRecords, List<LoggedRecord> records) throws IOException {
+            if(index == null){
+                buildIndex();
+            }
+            if(index.isEmpty()){
+                return;
+            }
+            long lastWanted = Math.min(endSequence, fromSequence + maxRecords); // Exclusive.
+            long[] start = index.get(0);
+            long endPosition = size;
+            for(long[] entry : index){ // Few entries, so a linear search is plenty.
+                if(entry[0] <= fromSequence){
+                    start = entry;
+                }else if(entry[0] >= lastWanted){
+                    endPosition = entry[1];
+                    break;
+                }
+            }
+            MappedByteBuffer mapped = channel().map(FileChannel.MapMode.READ_ONLY, start[1], endPosition - start[1]);
+            long sequence = start[0];
+            int position = 0;
+            int added = 0;
+            while(sequence < endSequence && added < maxRecords && position + HEADER_BYTES <= mapped.limit()){
+                int length = mapped.getInt(position);
+                if(sequence >= fromSequence){
+                    byte[] body = new byte[length];
+                    mapped.position(position + HEADER_BYTES);
+                    mapped.get(body);
+                    Object record = WireCodec.BINARY.decode(body, 0, length);
+                    if(record instanceof Message){
+                        ((Message) record).setSequence(sequence);
+                    }
+                    records.add(new LoggedRecord(sequence, record));
+                    added++;
+                }
+                position += HEADER_BYTES + length;
+                sequence++;
+            }
+        }
+
+        // Forces what was appended to disk, and now and then saves how far that is.
+        synchronized void sync() throws IOException {
+            if(channel == null){
+                return; // Closed since, which forced it.
+            }
+            channel.force(false);
+            if(System.currentTimeMillis() - checkpointMillis >= CHECKPOINT_MILLIS){
+                checkpoint();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if(channel == null){
+                return;
+            }
+            channel.force(false);
+            checkpoint();
+            channel.close();
+            channel = null;
+        }
+
+        // Saves the size and record count, once everything up to there is synced. Not synced itself: an old or torn
+        // tail only means recovery checks more records.
+        private void checkpoint() throws IOException {
+            checkpointMillis = System.currentTimeMillis();
+            if(recordCount < 0 || size == checkpointedSize){
+                return;
+            }
+            ByteBuffer tail = ByteBuffer.allocate(TAIL_BYTES);
+            tail.putLong(size).putLong(recordCount).putInt(crc(tail.array(), 0, 16));
+            Files.write(tailFile().toPath(), tail.array());
+            checkpointedSize = size;
+        }
+
+        // {size, record count} as last saved, or null if there is no usable tail.
+        private long[] readTail() throws IOException {
+            File tailFile = tailFile();
+            if(!tailFile.isFile()){
+                return null;
+            }
+            byte[] bytes = Files.readAllBytes(tailFile.toPath());
+            if(bytes.length != TAIL_BYTES || crc(bytes, 0, 16) != ByteBuffer.wrap(bytes).getInt(16)){
+                return null;
+            }
+            return new long[]{ByteBuffer.wrap(bytes).getLong(0), ByteBuffer.wrap(bytes).getLong(8)};
+        }
+
+        private File tailFile(){
+            return new File(file.getParentFile(), file.getName().replace(".log", ".tail"));
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length){
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    // A record read back from a log and its sequence number in its group.
+    public static class LoggedRecord {
+        private long sequence;
+        private Object record;
+
+        LoggedRecord(long sequence, Object record){
+            this.sequence = sequence;
+            this.record = record;
+        }
+
+        public long getSequence(){
+            return sequence;
+        }
+
+        public Object getRecord(){
+            return record;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking alternative to ServerMain's accept loop. Instead of a reader and a writer thread per client, a small,
+// fixed number of event loops each watch many client channels with a Selector and only touch a channel when it has
+// data to read or room to write. Idle clients then cost a few buffers instead of two blocked threads.
+// Frames are handled on worker threads, since logging them, reading history and storing attachments touch the disk.
+// Select it with -Dchat.engine=nio. -Dchat.eventLoops and -Dchat.nioWorkers set the number of threads (see ServerConfig).
+public class NioServerEngine implements Runnable {
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int DEFAULT_WORKERS = Math.max(4, Math.min(16, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final int READ_BUFFER_SIZE = 16 * 1024; // Grown per connection while a bigger frame (images) comes in, then shrunk back.
+    private static final int MAX_BATCH_FRAMES = 64; // Frames per gathering write, well under any OS's limit.
+    private static final int MAX_INBOUND_FRAMES = 256; // Frames a client can have waiting for a worker before we stop reading from him.
+
+    private ServerMain server;
+    private ServerConfig config;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private ExecutorService workers; // Handle every client's frames, one client's at a time in order, off the event loops.
+
+    // Binds right away, so the server is listening once this returns.
+    public NioServerEngine(ServerMain server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.config = config;
+        serverChannel = config.bindChannel();
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getWorkers(), runnable -> {
+            Thread thread = new Thread(runnable, "nio-worker-" + workerNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        eventLoops = new EventLoop[config.getEventLoops()];
+        for(int i = 0; i < eventLoops.length; i++){
+            eventLoops[i] = new EventLoop();
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Accepts connections on the calling thread and hands them to the event loops round robin. Accepting is cheap, so
+    // a plain blocking accept is all this thread needs.
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = this.serverChannel) {
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                try {
+                    config.configure(channel);
+                } catch (IOException e) {
+                    EventLog.warn("Could not set socket options: {}", e.getMessage());
+                }
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            EventLog.warn("NIO engine stopped accepting connections");
+        }
+    }
+
+    // One selector thread serving many clients. Other threads never touch its selector directly. They queue a task
+    // and wake it up.
+    class EventLoop implements Runnable {
+        private Selector selector;
+        private ConcurrentLinkedQueue<Runnable> tasks;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+            tasks = new ConcurrentLinkedQueue<Runnable>();
+        }
+
+        void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel){
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection); // Joins the server once he has said hello.
+                } catch (IOException e) {
+                    EventLog.warn("Could not register client channel");
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task = tasks.poll();
+                    while(task != null){
+                        task.run();
+                        task = tasks.poll();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if(key.isValid() && key.isReadable()){
+                                connection.read();
+                            }
+                            if(key.isValid() && key.isWritable()){
+                                connection.write();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.fail();
+                        } catch (RuntimeException e) { // A frame we couldn't make sense of, or a bug. Only this client pays for it.
+                            EventLog.warn("Dropping client {} after {}", connection.clientID, e);
+                            connection.fail();
+                        }
+                    }
+                } catch (IOException e) {
+                    EventLog.error("Event loop could not select");
+                } catch (RuntimeException e) { // From a task. The loop has every other client to keep serving.
+                    EventLog.error("Event loop task failed: {}", e);
+                }
+            }
+        }
+    }
+
+    // One client on the NIO engine. Observes the server like ClientObserver does, but instead of waking a writer thread
+    // it asks its event loop to write once the socket has room.
+    class NioConnection implements Observer, Closeable {
+        private int clientID; // -1 until the client has said hello and joined the server.
+        private WireCodec codec;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private EventLoop eventLoop;
+        private ByteBuffer readBuffer; // Bytes read but not yet made into whole frames. Kept in read mode between reads.
+        private ByteBuffer[] batch; // Frames being written together, in one gathering write when the socket has room.
+        private SharedFrame[] batchFrames; // The shared frames the batch reads from. Each is released once fully written.
+        private int batchStart, batchEnd; // batch[batchStart] is the first not fully written yet.
+        private int batchBytes;
+        private long batchStarted; // When the batch's first write began, including any waits for the socket to drain.
+        private OutboundQueue outboundQueue;
+        private AtomicBoolean writeScheduled;
+        private ConcurrentLinkedQueue<Object> inbound; // Frames read but not handled yet.
+        private AtomicInteger inboundFrames; // Size of inbound, which the queue can't tell cheaply.
+        private AtomicBoolean handling; // A worker is handling (or about to handle) his frames.
+        private ConnectionStats stats;
+
+        NioConnection(SocketChannel channel, EventLoop eventLoop){
+            this.clientID = -1;
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            readBuffer.flip();
+            outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, server.getSlowConsumerPolicy());
+            writeScheduled = new AtomicBoolean();
+            inbound = new ConcurrentLinkedQueue<Object>();
+            inboundFrames = new AtomicInteger();
+            handling = new AtomicBoolean();
+            stats = new ConnectionStats(server.getMetrics());
+            batch = new ByteBuffer[MAX_BATCH_FRAMES];
+            batchFrames = new SharedFrame[MAX_BATCH_FRAMES];
+        }
+
+        // Queues data for the client and makes sure the event loop will write it. The data comes as a Broadcast, so the
+        // frame is shared with every other client getting it.
+        @Override
+        public void update(Observable o, Object arg) {
+            SharedFrame frame;
+            try {
+                frame = ((Broadcast) arg).frameFor(codec);
+            } catch (IOException e) {
+                EventLog.warn("Could not encode {} for client {}", ((Broadcast) arg).getData(), clientID);
+                return;
+            }
+            if(!outboundQueue.offer(frame)){
+                EventLog.warn("Client {} is too slow to keep up. Disconnecting him.", clientID);
+                server.disconnectClient(clientID, this);
+            }else if(writeScheduled.compareAndSet(false, true)){
+                eventLoop.execute(() -> {
+                    if(key.isValid()){
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        // Reads whatever arrived and queues every complete frame for a worker to hand to the server. The hello is handled
+        // right here, so he has his ID before any later frame is queued.
+        void read() throws IOException {
+            readBuffer.compact();
+            int bytesRead = channel.read(readBuffer);
+            readBuffer.flip();
+            if(bytesRead < 0){
+                throw new IOException("Client closed connection");
+            }
+            stats.bytesRead(bytesRead);
+            if(codec == null){
+                codec = WireCodec.accept(readBuffer);
+                if(codec == null){
+                    return; // Rest of the hello hasn't arrived yet.
+                }
+                batch[0] = ByteBuffer.wrap(new byte[]{codec.getID()}); // Answer goes out before any frame. Not a shared frame, so not counted.
+                batchEnd = 1;
+                writeScheduled.set(true); // Nothing else will ask for a write until he has said hello, which waits for this.
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            while(readBuffer.remaining() >= 4){
+                int length = readBuffer.getInt(readBuffer.position());
+                if(length < 0 || length > (clientID == -1 ? Frames.MAX_HELLO_LENGTH : Frames.MAX_FRAME_LENGTH)){
+                    throw new IOException("Bad frame length " + length);
+                }
+                if(readBuffer.remaining() < 4 + length){
+                    if(readBuffer.capacity() < 4 + length){ // Frame won't fit. Grow the buffer, keeping what we have.
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(readBuffer);
+                        bigger.flip();
+                        readBuffer = bigger;
+                    }
+                    break; // Wait for the rest of the frame.
+                }
+                readBuffer.position(readBuffer.position() + 4);
+                Object data = codec.decode(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length);
+                readBuffer.position(readBuffer.position() + length);
+                stats.frameRead();
+                if(clientID == -1){ // The first frame says who he is.
+                    if(!(data instanceof Hello)){
+                        throw new IOException("Expected a hello, got " + data);
+                    }
+                    Welcome welcome = server.welcome((Hello) data);
+                    clientID = welcome.getClientID();
+                    stats.joined(clientID, outboundQueue);
+                    server.addClient(welcome, this, stats, this);
+                }else{
+                    inbound.add(data);
+                    inboundFrames.incrementAndGet();
+                    if(handling.compareAndSet(false, true)){
+                        workers.execute(this::handleInbound);
+                    }
+                }
+            }
+            if(inboundFrames.get() >= MAX_INBOUND_FRAMES){ // The workers can't keep up with him. Leave the rest in his socket for now.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if(readBuffer.capacity() > READ_BUFFER_SIZE && pendingFrameBytes() <= READ_BUFFER_SIZE){ // Done with the big frame. Don't keep its buffer.
+                ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                smaller.put(readBuffer);
+                smaller.flip();
+                readBuffer = smaller;
+            }
+        }
+
+        // Runs on a worker. Hands his queued frames to the server in the order they came, then stops, unless more came in
+        // meanwhile. Asks the event loop to read from him again once he is back under the limit.
+        private void handleInbound(){
+            do {
+                Object data;
+                while((data = inbound.poll()) != null){
+                    try {
+                        server.handle(clientID, data);
+                    } catch (RuntimeException e) { // A bug. Only this client pays for it, and his other frames stay unhandled.
+                        EventLog.warn("Dropping client {} after {}", clientID, e);
+                        inbound.clear();
+                        fail();
+                        return;
+                    }
+                    if(inboundFrames.decrementAndGet() == MAX_INBOUND_FRAMES - 1){
+                        eventLoop.execute(() -> {
+                            if(key.isValid() && inboundFrames.get() < MAX_INBOUND_FRAMES){
+                                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                            }
+                        });
+                    }
+                }
+                handling.set(false);
+            } while(!inbound.isEmpty() && handling.compareAndSet(false, true)); // Queued after we emptied it, but before we let go.
+        }
+
+        // Bytes the frame that has started arriving will need, or what is left in the buffer if its length hasn't come yet.
+        private int pendingFrameBytes(){
+            return readBuffer.remaining() < 4 ? readBuffer.remaining() : 4 + readBuffer.getInt(readBuffer.position());
+        }
+
+        // Writes queued frames until the queue is empty or the socket is full. Whatever is queued goes out in batches of
+        // up to the batch size, each in one gathering write, so a burst costs a few syscalls instead of one per frame.
+        // Frames that arrive while the event loop is busy with other connections join the next batch, which does for
+        // this engine what lingering does for the blocking one.
+        void write() throws IOException {
+            while(true){
+                if(batchStart == batchEnd && !nextBatch()){
+                    break;
+                }
+                channel.write(batch, batchStart, batchEnd - batchStart);
+                while(batchStart < batchEnd && !batch[batchStart].hasRemaining()){
+                    batch[batchStart] = null;
+                    if(batchFrames[batchStart] != null){
+                        batchFrames[batchStart].release();
+                        batchFrames[batchStart] = null;
+                    }
+                    batchStart++;
+                }
+                if(batchStart < batchEnd){
+                    return; // Socket is full. Keep OP_WRITE and finish when it drains.
+                }
+                if(batchBytes > 0){
+                    stats.batchWritten(batchEnd, batchBytes, System.nanoTime() - batchStarted);
+                }
+                batchStart = batchEnd = batchBytes = 0;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            if(outboundQueue.size() > 0 && writeScheduled.compareAndSet(false, true)){ // Something was queued after we emptied the queue.
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Takes queued frames into the batch, up to the batch size. Returns false if there were none.
+        private boolean nextBatch(){
+            batchStarted = System.nanoTime();
+            while(batchEnd < MAX_BATCH_FRAMES && batchBytes < config.getWriteBatchBytes()){
+                SharedFrame frame = outboundQueue.poll();
+                if(frame == null){
+                    break;
+                }
+                batchFrames[batchEnd] = frame;
+                batch[batchEnd] = frame.newBuffer();
+                batchBytes += frame.getLength();
+                batchEnd++;
+            }
+            return batchEnd > 0;
+        }
+
+        // Connection broke. Remove the client, or just drop the channel if he never finished saying hello.
+        void fail(){
+            if(clientID == -1){
+                close();
+            }else{
+                server.disconnectClient(clientID, this);
+            }
+        }
+
+        // Can be called from any thread, so the channel itself is closed on the event loop, which may be mid-write.
+        @Override
+        public void close() {
+            outboundQueue.close();
+            eventLoop.execute(() -> {
+                for(int i = batchStart; i < batchEnd; i++){
+                    if(batchFrames[i] != null){
+                        batchFrames[i].release();
+                        batchFrames[i] = null;
+                    }
+                }
+                batchStart = batchEnd = 0;
+                if(key != null){
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    EventLog.warn("Could not close client channel");
+                }
+            });
+        }
+    }
+}
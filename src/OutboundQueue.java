@@ -0,0 +1,145 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of frames waiting to be written to one client. The thread that routes data to the client only adds to
+// the queue, and the client's own writer takes from it, so a slow client can only ever slow itself down.
+// Uses a ReentrantLock rather than synchronized/wait() so a writer waiting on a virtual thread gives up its carrier.
+public class OutboundQueue {
+    // What to do when a client falls so far behind that his queue is full.
+    public enum SlowConsumerPolicy {
+        DISCONNECT, // Cut the client off. He can reconnect once his connection is better.
+        DROP_OLDEST; // Throw away his oldest droppable data (chat messages) to make room. Disconnect if there is none.
+
+        public static SlowConsumerPolicy fromProperty(){
+            String value = System.getProperty("chat.slowConsumerPolicy", "disconnect");
+            return value.trim().equalsIgnoreCase("drop") || value.trim().equalsIgnoreCase("drop_oldest") ? DROP_OLDEST : DISCONNECT;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outboundQueueCapacity", 256);
+
+    private final Deque<SharedFrame> items;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private boolean closed;
+    private long dropped;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy){
+        this.items = new ArrayDeque<SharedFrame>();
+        this.capacity = capacity;
+        this.policy = policy;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    // Adds a frame for the writer, who releases it once written. Returns false if the client is over his limit and has
+    // to be disconnected. The frame is released here if it is not queued.
+    public boolean offer(SharedFrame item){
+        lock.lock();
+        try {
+            if(closed){
+                item.release();
+                return true; // Client is already on his way out. Nothing to do.
+            }
+            if(items.size() >= capacity && !(policy == SlowConsumerPolicy.DROP_OLDEST && dropOldest())){
+                item.release();
+                return false;
+            }
+            items.addLast(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Group changes and the user list can't be dropped without the client's state going wrong, but missing a chat
+    // message under load is acceptable.
+    private boolean dropOldest(){
+        Iterator<SharedFrame> iterator = items.iterator();
+        while(iterator.hasNext()){
+            SharedFrame frame = iterator.next();
+            if(frame.isDroppable()){
+                iterator.remove();
+                frame.release();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Blocks until there is something to write. Returns null once the queue is closed.
+    public SharedFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(items.isEmpty() && !closed){
+                notEmpty.await();
+            }
+            return closed ? null : items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the next item without waiting, or null if there is none.
+    public SharedFrame poll(){
+        lock.lock();
+        try {
+            return closed ? null : items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like poll(), but waits up to the given time for an item to arrive.
+    public SharedFrame poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while(items.isEmpty() && !closed && nanos > 0){
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return closed ? null : items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(){
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped(){
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wakes up the writer and makes it stop. Anything still queued is thrown away.
+    public void close(){
+        lock.lock();
+        try {
+            closed = true;
+            for(SharedFrame frame : items){
+                frame.release();
+            }
+            items.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.Serializable;
+
+// One client registering or leaving, sent to everyone instead of the whole list of registered users. Each change gets
+// the next version number, so a client can tell it missed one and ask for a PresenceSnapshot.
+public class PresenceDelta implements Serializable {
+    private long version;
+    private int clientID;
+    private boolean joined; // False if he left.
+
+    public PresenceDelta(long version, int clientID, boolean joined) {
+        this.version = version;
+        this.clientID = clientID;
+        this.joined = joined;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getClientID() {
+        return clientID;
+    }
+
+    public boolean isJoined() {
+        return joined;
+    }
+
+    @Override
+    public String toString(){
+        return "Presence " + version + ": " + clientID + (joined ? " joined" : " left");
+    }
+}
@@ -0,0 +1,9 @@
+import java.io.Serializable;
+
+// Sent by a client that missed a presence change. The server answers with a PresenceSnapshot.
+public class PresenceRequest implements Serializable {
+    @Override
+    public String toString(){
+        return "Request for presence snapshot";
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.Serializable;
+import java.util.List;
+
+// Every registered user as of a presence version. Sent to a client when he connects, and again if he asks because he
+// missed a PresenceDelta. Deltas after it carry version + 1, version + 2 and so on.
+public class PresenceSnapshot implements Serializable {
+    private long version;
+    private List<Integer> users;
+
+    public PresenceSnapshot(long version, List<Integer> users) {
+        this.version = version;
+        this.users = users;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Integer> getUsers() {
+        return users;
+    }
+
+    @Override
+    public String toString(){
+        return "Presence " + version + ": " + users;
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Everything about how the server listens and serves, read once from system properties so both engines and the
+// optional ServerView agree:
+//
+// -Dchat.bind           address to listen on (default: every interface)
+// -Dchat.port           port to listen on (default 8000; clients and the LoadGenerator read it too)
+// -Dchat.backlog        connections the OS queues before the server accepts them (default 1024)
+// -Dchat.tcpNoDelay     send small frames right away instead of waiting to fill a packet (default true)
+// -Dchat.sendBuffer     per-connection socket send buffer in bytes (default: the OS's)
+// -Dchat.receiveBuffer  per-connection socket receive buffer in bytes (default: the OS's)
+// -Dchat.engine         blocking (default) or nio
+// -Dchat.eventLoops     event loop threads of the nio engine (default: cores, at most 4)
+// -Dchat.nioWorkers     threads the nio engine handles frames on, since that touches the disk (default: twice the
+//                       cores, at least 4 and at most 16)
+// -Dchat.ui             show the ServerView window (default: only when there is a display)
+// -Dchat.metricsPort    local port of the plain-text metrics page, see ServerMetrics (default 8001, 0 for none)
+// -Dchat.writeBatch     bytes of queued frames a client's writer collects before flushing them together (default 8192)
+// -Dchat.writeLinger    microseconds the blocking engine's writer waits for more frames in a burst before flushing
+//                       (default 100, 0 for never). Never waited for when the client is idle.
+//
+// -Dchat.threads=virtual is read by ServerThreads, since the blocking engine's threads are started there.
+// -Dchat.log and -Dchat.logBuffer are read by EventLog, since the client logs through it too.
+public class ServerConfig {
+    public static final int DEFAULT_PORT = 8000;
+
+    private String bindAddress;
+    private int port;
+    private int backlog;
+    private boolean tcpNoDelay;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private boolean nio;
+    private int eventLoops;
+    private int workers;
+    private boolean ui;
+    private int metricsPort;
+    private int writeBatchBytes;
+    private long writeLingerNanos;
+
+    public static ServerConfig fromProperties(){
+        ServerConfig config = new ServerConfig();
+        config.bindAddress = System.getProperty("chat.bind");
+        config.port = Integer.getInteger("chat.port", DEFAULT_PORT);
+        config.backlog = Integer.getInteger("chat.backlog", 1024);
+        config.tcpNoDelay = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+        config.sendBufferSize = Integer.getInteger("chat.sendBuffer", 0);
+        config.receiveBufferSize = Integer.getInteger("chat.receiveBuffer", 0);
+        config.nio = System.getProperty("chat.engine", "blocking").equalsIgnoreCase("nio");
+        config.eventLoops = Integer.getInteger("chat.eventLoops", NioServerEngine.DEFAULT_EVENT_LOOPS);
+        config.workers = Math.max(1, Integer.getInteger("chat.nioWorkers", NioServerEngine.DEFAULT_WORKERS));
+        String ui = System.getProperty("chat.ui");
+        config.ui = ui == null ? !java.awt.GraphicsEnvironment.isHeadless() : Boolean.parseBoolean(ui); // Headless boxes (or -Djava.awt.headless=true) never load JavaFX.
+        config.metricsPort = Integer.getInteger("chat.metricsPort", 8001);
+        config.writeBatchBytes = Math.max(1, Integer.getInteger("chat.writeBatch", 8192));
+        config.writeLingerNanos = Math.max(0, Long.getLong("chat.writeLinger", 100)) * 1000;
+        return config;
+    }
+
+    public InetSocketAddress getAddress(){
+        return bindAddress == null ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+    }
+
+    public int getPort(){
+        return port;
+    }
+
+    public int getBacklog(){
+        return backlog;
+    }
+
+    public boolean isNio(){
+        return nio;
+    }
+
+    public int getEventLoops(){
+        return eventLoops;
+    }
+
+    public int getWorkers(){
+        return workers;
+    }
+
+    public boolean showsUi(){
+        return ui;
+    }
+
+    public int getMetricsPort(){
+        return metricsPort;
+    }
+
+    public int getWriteBatchBytes(){
+        return writeBatchBytes;
+    }
+
+    public long getWriteLingerNanos(){
+        return writeLingerNanos;
+    }
+
+    // The receive buffer is set on the listening socket, so accepted sockets have it from the start and the TCP window
+    // is sized for it in the handshake.
+    public ServerSocket bind() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        if(receiveBufferSize > 0){
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+        serverSocket.bind(getAddress(), backlog);
+        return serverSocket;
+    }
+
+    public ServerSocketChannel bindChannel() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if(receiveBufferSize > 0){
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        serverChannel.bind(getAddress(), backlog);
+        return serverChannel;
+    }
+
+    public void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if(sendBufferSize > 0){
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+
+    public void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if(sendBufferSize > 0){
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+
+    @Override
+    public String toString(){
+        return (nio ? "nio engine with " + eventLoops + " event loops and " + workers + " workers" : "blocking engine") + " on " + getAddress() + ", backlog " + backlog
+                + ", TCP_NODELAY " + tcpNoDelay + (sendBufferSize > 0 ? ", send buffer " + sendBufferSize : "")
+                + (receiveBufferSize > 0 ? ", receive buffer " + receiveBufferSize : "") + (ui ? ", with window" : ", headless")
+                + (metricsPort > 0 ? ", metrics on 127.0.0.1:" + metricsPort : "") + ", write batches of " + writeBatchBytes + " bytes"
+                + (writeLingerNanos > 0 && !nio ? " with " + writeLingerNanos / 1000 + " us linger" : "");
+    }
+}
@@ -1,224 +1,623 @@
-import javafx.application.Application;
-import javafx.application.Platform;
-import javafx.embed.swing.JFXPanel;
-import javafx.scene.Scene;
-import javafx.scene.control.Label;
-import javafx.scene.layout.StackPane;
-import javafx.scene.text.Font;
-import javafx.stage.Stage;
-
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerMain extends Observable {
-    private List<Integer> registeredUsers; // Clients are gonna be on different computers, so we need to store registered user somewhere, so store it on Server as a list.
-    private Integer currentClientNumber, currentGroupNumber;
-    private Map<Integer, ClientConnection> clientData;
+    private static final long ATTACHMENT_WAIT_MILLIS = Long.getLong("chat.attachmentWaitMillis", 60000); // How long to wait for an upload we asked for.
+    private IntSet registeredUsers; // Clients are gonna be on different computers, so we need to store registered user somewhere, so store it on Server. Reader threads change it concurrently.
+    private AtomicInteger currentClientNumber, currentGroupNumber; // Next IDs to hand out. Atomic, so two clients or groups never get the same one.
+    private IntMap<ClientConnection> clientData;
+    private Set<Integer> resuming; // IDs welcomed back but not added yet. Under the server's lock.
+    private long presenceVersion; // Bumped by every PresenceDelta. Guarded by this, like the broadcasts themselves.
+    private GroupRoutingTable groupRoutingTable; // Which clients are in which group, so messages only go to the group's members.
+    private IntMap<Object> groupLocks; // Held while a group's record is logged and queued, so members get them in sequence order.
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy; // What happens to a client whose outbound queue fills up.
+    private AttachmentStore attachmentStore; // Image bytes by hash. Messages only carry the hashes.
+    private Map<String, AttachmentWait> attachmentWaiters; // Attachments asked of their senders, and the clients waiting for them.
+    private SessionRegistry sessions; // Session token -> client ID, so reconnecting clients keep their identity.
+    private MessageLog messageLog; // Every routed message and group change, on disk, so history outlives the server and its clients.
+    private ServerConfig config;
+    private ServerMetrics metrics; // Counters and latencies, over JMX and a local text page.
 
+    // Starts the chat core and serves until killed. The ServerView window is only a front end on top of it: without
+    // a display (or with -Dchat.ui=false) JavaFX is never loaded.
     public static void main(String[] args){
-        new ServerMain();
-    }
-
-    public ServerMain() {
-        registeredUsers = new ArrayList<Integer>();
-        currentClientNumber = currentGroupNumber = 0;
-        clientData = new HashMap<Integer, ClientConnection>();
+        long start = System.nanoTime();
+        ServerConfig config = ServerConfig.fromProperties();
         try {
-            ServerView serverView = new ServerView();
-            serverView.init();
-            new JFXPanel(); // Initialize the JavaFX environment. I don't call launch() since that creates a new
-            // instance of View using the default constructor, but each View needs a client, which is passed in the
-            // constructor. The bypass: do everything that launch() does, but manually, to keep this instead.
-            Platform.runLater(() -> new ServerView().start(new Stage()));
-            // Create the ServerSocket.
-            ServerSocket server = new ServerSocket(8000);
-            while (true) {
-                // Take in connection
-                Socket connectionToClient = server.accept();
-
-                // Create input and output streams.
-                OutputStream outputStream = connectionToClient.getOutputStream();
-                InputStream inputStream = connectionToClient.getInputStream();
-
-                // Create ClientObserver to output to client from server when server changes.
-                ClientObserver clientObserver = new ClientObserver(outputStream);
-                this.addObserver(clientObserver);
-
-                // Create input stream thread to listen to inputs from the client coming in through the socket. NOTE: Creation of ObjectOutputStream MUST precede creation of ObjectInputStream.
-                new Thread(new ClientHandler(inputStream)).start();
-
-                // Give the new client his custom ID.
-                this.setChanged();
-                this.notifyObservers(currentClientNumber);
-                clientData.put(currentClientNumber, new ClientConnection(clientObserver, inputStream, outputStream));
-                currentClientNumber++;
+            ServerMain server = new ServerMain(config);
+            if(config.showsUi()){
+                try {
+                    ServerView.show(server);
+                } catch(Exception | LinkageError e){ // No JavaFX on this JVM, or no display after all.
+                    EventLog.warn("Could not initialize server view. Running headless.");
+                }
             }
+            Runtime.getRuntime().addShutdownHook(new Thread(server::clear, "shutdown")); // Clients see a closed connection, not a silent one.
+            server.serve(() -> EventLog.info("Serving ({}) after {} ms", config, (System.nanoTime() - start) / 1000000));
         } catch (IOException e) {
-            System.out.println("Could not intialize server");
-        } catch(Exception e){
-            System.out.println("Could not initialize server view.");
+            EventLog.error("Could not intialize server: {}", e.getMessage());
         }
     }
 
-    // Observes changes to server, and relays data to clients.
-    class ClientObserver implements Observer {
-        // The Observer will observe the server, and when server changes, relay that data to its client via writing to an output stream. So, we need an output stream.
+    // Recovers groups and sessions from disk. Doesn't listen yet: see serve().
+    public ServerMain(ServerConfig config) throws IOException {
+        this.config = config;
+        registeredUsers = new IntSet();
+        currentClientNumber = new AtomicInteger();
+        currentGroupNumber = new AtomicInteger();
+        clientData = new IntMap<ClientConnection>();
+        resuming = new HashSet<Integer>();
+        groupRoutingTable = new GroupRoutingTable();
+        groupLocks = new IntMap<Object>();
+        slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.fromProperty();
+        metrics = new ServerMetrics(clientData::size, groupRoutingTable::size, this::connectionStats);
+        attachmentWaiters = new HashMap<String, AttachmentWait>();
+        attachmentStore = new AttachmentStore(new File(System.getProperty("chat.attachmentDir", "attachments")), AttachmentStore.DEFAULT_MEMORY_BUDGET);
+        File logDirectory = new File(System.getProperty("chat.logDir", "messages"));
+        messageLog = new MessageLog(logDirectory, MessageLog.DEFAULT_SEGMENT_BYTES);
+        sessions = new SessionRegistry(new File(logDirectory, "sessions"));
+        recoverFromLog();
+    }
 
-        ObjectOutputStream outputToClient;
+    // Listens with the configured engine, then calls listening, then serves clients on this thread until the server dies.
+    public void serve(Runnable listening) throws IOException {
+        metrics.start(config.getMetricsPort());
+        if(config.isNio()){
+            // A few event loop threads serve every client instead of two threads per client.
+            NioServerEngine engine = new NioServerEngine(this, config);
+            listening.run();
+            engine.run();
+        }else{
+            ServerSocket serverSocket = config.bind();
+            listening.run();
+            acceptConnections(serverSocket);
+        }
+    }
 
-        // Initializes output stream to client.
-        public ClientObserver(OutputStream outputToClient){
+    // Blocking engine: one reader thread and one writer thread per client.
+    private void acceptConnections(ServerSocket server) throws IOException {
+        while (true) {
+            // Take in connection
+            Socket connectionToClient = server.accept();
             try {
-                this.outputToClient = new ObjectOutputStream(outputToClient);
+                config.configure(connectionToClient);
             } catch (IOException e) {
-                System.out.println("Could not create ObjectOutputStream in ClientObserver");
+                EventLog.warn("Could not set socket options: {}", e.getMessage());
             }
+
+            // Create input stream thread to listen to inputs from the client coming in through the socket. It agrees on a
+            // codec with the client first, so a client that is slow to say hello doesn't hold up accepting the next one.
+            // Virtual thread when started with -Dchat.threads=virtual.
+            ServerThreads.start(new ClientHandler(connectionToClient), "reader-" + connectionToClient.getRemoteSocketAddress());
         }
+    }
 
-        // Writes to client.
-        @Override
-        public void update(Observable o, Object arg) {
-            try { // Write to client once observer observes changes to the server.
-                System.out.println("Writing " + arg);
-                outputToClient.writeObject(arg);
-                outputToClient.flush(); // Code works without this, but just to force bytes to be written to stream.
-                outputToClient.reset(); // Otherwise, Client 1 gets first element, Client 2 gets first 2, ... Client n gets first n. We want all clients to get all n elements.
-            } catch (IOException e) {
-                System.out.println("Could not write object to client in ClientObserver");
-                e.printStackTrace();
+    // Rebuilds the routing table from the logged group changes, and moves the ID counters past every ID in the log so a
+    // new group or client never gets an ID the history already uses.
+    private void recoverFromLog() throws IOException {
+        for(Object change : messageLog.readGroupChanges()){
+            if(change instanceof Group){
+                Group group = (Group) change;
+                groupRoutingTable.update(group);
+                currentGroupNumber.accumulateAndGet(group.getGroupID() + 1, Math::max);
+                for(Integer clientID : group.getClientIDs()){
+                    currentClientNumber.accumulateAndGet(clientID + 1, Math::max);
+                }
+            }else if (change instanceof GroupDelta){
+                GroupDelta delta = (GroupDelta) change;
+                groupRoutingTable.apply(delta);
+                for(Integer clientID : delta.getAddedIDs()){
+                    currentClientNumber.accumulateAndGet(clientID + 1, Math::max);
+                }
             }
         }
+        currentClientNumber.accumulateAndGet(sessions.getMaxClientID() + 1, Math::max); // IDs that never joined a group still belong to someone.
+        EventLog.info("Recovered message log. Next group {}, next client {}", currentGroupNumber.get(), currentClientNumber.get());
     }
 
-    private void removeClient(int clientID){
+    // Appends to a group's log. History is best effort: if the disk fails, the message is still delivered.
+    private long log(int groupID, Object record){
         try {
-            registeredUsers.remove(new Integer(clientID)); // Remove user if he sends himself when he is already on registered users list.
-            deleteObserver(clientData.get(clientID).clientObserver);
-            clientData.get(clientID).inputStream.close();
-            clientData.get(clientID).outputStream.close();
-        }catch(IOException ioe){
-            System.out.println("Could not remove client " + clientID);
+            return messageLog.append(groupID, record);
+        } catch (IOException e) {
+            EventLog.warn("Could not log to group {}: {}", groupID, e.getMessage());
+            return -1;
         }
     }
 
-    private void clear(){
-        for(Integer clientID : clientData.keySet()){
-            removeClient(clientID);
+    private Object groupLock(int groupID){
+        Object lock = groupLocks.get(groupID);
+        if(lock == null){
+            Object created = new Object();
+            lock = groupLocks.putIfAbsent(groupID, created);
+            if(lock == null){
+                lock = created;
+            }
         }
-        clientData.clear();
+        return lock;
     }
 
-    // Observes input from a client. Sets server as changed. ClientObserver sees change in server and relays data to clients.
-    class ClientHandler implements Runnable {
-        // This thread will listen for data coming in to the server over the socket and notify observers of it. Therefore, we need an InputStream to listen from.
+    OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy(){
+        return slowConsumerPolicy;
+    }
+
+    ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    private List<ConnectionStats> connectionStats(){
+        List<ConnectionStats> stats = new ArrayList<ConnectionStats>();
+        for(ClientConnection clientConnection : clientData.values()){
+            stats.add(clientConnection.stats);
+        }
+        return stats;
+    }
+
+    // Answers a client's Hello: his old ID if he has a token we issued, or else a new ID and token. If his ID is still
+    // connected, that connection is most likely a dead one the server hasn't noticed yet (his Wi-Fi dropped, his laptop
+    // slept), so it is closed and he resumes on the new one. Only one copy of the client runs per profile, see
+    // LocalStore. The ID is reserved until addClient, which the engines call right after, so two connections resuming
+    // at once can't both get it: the second gets a new ID.
+    Welcome welcome(Hello hello) throws IOException {
+        Integer resumedID = sessions.resume(hello.getSessionToken());
+        if(resumedID != null){
+            synchronized (this){
+                if(resuming.add(resumedID)){
+                    if(removeClient(resumedID, null)){
+                        EventLog.info("Client {} resumed on a new connection. Closed his old one.", resumedID);
+                    }
+                    return new Welcome(resumedID, hello.getSessionToken(), true);
+                }
+            }
+            EventLog.warn("Client {} is already resuming on another connection. Giving this one a new ID.", resumedID);
+        }
+        int clientID = currentClientNumber.getAndIncrement();
+        return new Welcome(clientID, sessions.create(clientID), false); // Outside the server's lock: it writes to disk.
+    }
+
+    // Starts relaying server changes to a newly connected client and gives him his custom ID. Only he needs it, so
+    // write it to him alone. Called by whichever engine accepted the connection.
+    // He also gets the registered users as of now, queued under the broadcast lock so the first presence change he hears
+    // about is the one right after it. A client resuming his session is registered again without having to ask.
+    synchronized void addClient(Welcome welcome, Observer clientObserver, ConnectionStats stats, Closeable... resources){
+        int clientID = welcome.getClientID();
+        resuming.remove(clientID);
+        clientData.put(clientID, new ClientConnection(clientObserver, stats, resources));
+        addObserver(clientObserver);
+        sendTo(Collections.singleton(clientID), welcome);
+        sendTo(Collections.singleton(clientID), new PresenceSnapshot(presenceVersion, registeredUsers.toList()));
+        if(welcome.isResumed()){
+            registerUser(clientID);
+        }
+    }
+
+    // Sends data to every client, encoding it only once per codec however many clients there are. Marks the server changed
+    // in the same locked step, so two threads broadcasting at once can't clear each other's change and lose a broadcast.
+    // Holding the lock also means every client sees broadcasts in the same order. Observers only queue, so it's short.
+    @Override
+    public void notifyObservers(Object data){
+        Broadcast broadcast = new Broadcast(data);
+        synchronized (this){
+            setChanged();
+            super.notifyObservers(broadcast);
+        }
+        broadcast.release();
+    }
+
+    // Observes changes to server, and relays data to clients.
+    class ClientObserver implements Observer, Runnable, Closeable {
+        // The Observer will observe the server, and when server changes, relay that data to its client via writing to an output stream. So, we need an output stream.
 
-        ObjectInputStream inputFromClient;
+        DataOutputStream outputToClient;
+        private int clientID;
+        private WireCodec codec; // Agreed with the client when he connected.
+        private OutboundQueue outboundQueue; // update() only queues. This observer's own writer thread does the blocking writes.
+        private ConnectionStats stats;
 
-        // Initializes input stream from client.
-        public ClientHandler(InputStream inputFromClient) {
+        // Initializes output stream to client.
+        public ClientObserver(int clientID, DataOutputStream outputToClient, WireCodec codec, ConnectionStats stats){
+            this.clientID = clientID;
+            this.codec = codec;
+            this.outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, slowConsumerPolicy);
+            this.outputToClient = outputToClient;
+            this.stats = stats;
+            stats.joined(clientID, outboundQueue);
+        }
+
+        // Queues data for the client. Called on whichever thread routed the data, so it must never block on the socket.
+        // The data comes as a Broadcast, so the frame is shared with every other client getting it.
+        @Override
+        public void update(Observable o, Object arg) {
+            SharedFrame frame;
             try {
-                this.inputFromClient = new ObjectInputStream(inputFromClient);
+                frame = ((Broadcast) arg).frameFor(codec);
             } catch (IOException e) {
-                System.out.println("Could not create ObjectInputStream from ClientHandler");
+                EventLog.warn("Could not encode {} for client {}", ((Broadcast) arg).getData(), clientID);
+                return;
+            }
+            if(!outboundQueue.offer(frame)){
+                EventLog.warn("Client {} is too slow to keep up. Disconnecting him.", clientID);
+                disconnectClient(clientID, this);
             }
         }
 
-        // Observes input from a client. Sets server as changed. ClientObserver sees change in server and relays data to other clients.
+        // Writer thread. Writes queued data to the client until he is removed. Frames that are already queued are
+        // written together and flushed once, up to the batch size, so a burst costs a few socket writes instead of one
+        // per frame. Once a batch has more than one frame the burst is probably still going, so the writer lingers a
+        // moment for the next frame before flushing. A frame that comes in while he is idle is flushed right away.
         @Override
         public void run() {
-            // When we read from the input stream, broadcast it to all client observers to relay to the clients via the respective socket.
+            long lingerNanos = config.getWriteLingerNanos();
+            int batchBytes = config.getWriteBatchBytes();
             try {
-                Object dataFromClient = inputFromClient.readObject();
-                while (dataFromClient != null) {
-                    setChanged();
-                    if(dataFromClient instanceof Integer){
-                        Integer clientID = (Integer) dataFromClient;
-                        // This client sent its client id to be added to or removed from registered users. So, send the updated list to all observers to push to ALL clients.
-                        if(registeredUsers.contains(clientID)){
-                            removeClient(clientID);
-                            clientData.remove(clientID);
-                        }else {
-                            registeredUsers.add((Integer)dataFromClient); // Add the new client's future ID to the list of registered users. ID sent
-                        }
-                        System.out.println("Server sending " + registeredUsers);
-                        notifyObservers(registeredUsers);
-                    }else if (dataFromClient instanceof Group){
-                        System.out.println("Server received " + dataFromClient);
-                        Group group = (Group)dataFromClient;
-                        if(group.getGroupID() == -1){ // Indicates group is asking for proper id.
-                            group.setGroupID(currentGroupNumber);
-                            System.out.println("Here ya go, number " + currentGroupNumber);
-                            currentGroupNumber++;
-                        }
-                        notifyObservers(group);
-                    }else{
-                        notifyObservers(dataFromClient);
+                SharedFrame frame = outboundQueue.take();
+                int frames = 0;
+                int bytes = 0;
+                long start = 0;
+                while(frame != null){
+                    if(EventLog.isDebugEnabled()){
+                        EventLog.debug("Writing {} bytes to client {}", frame.getLength(), clientID);
+                    }
+                    if(frames == 0){
+                        start = System.nanoTime();
+                    }
+                    try {
+                        outputToClient.write(frame.getBytes(), 0, frame.getLength());
+                        frames++;
+                        bytes += frame.getLength();
+                    } finally {
+                        frame.release(); // The stream has copied it, or already written it if it was too big to hold.
+                    }
+                    frame = outboundQueue.poll();
+                    if(frame == null && frames > 1 && bytes < batchBytes && lingerNanos > 0){
+                        frame = outboundQueue.poll(lingerNanos);
+                    }
+                    if(frame == null || bytes >= batchBytes){
+                        outputToClient.flush();
+                        stats.batchWritten(frames, bytes, System.nanoTime() - start);
+                        frames = 0;
+                        bytes = 0;
+                    }
+                    if(frame == null){
+                        frame = outboundQueue.take();
                     }
-                    System.out.println("Server sent " + dataFromClient);
-                    dataFromClient = inputFromClient.readObject();
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Could not read data from client");
+            } catch (IOException e) {
+                EventLog.warn("Could not write object to client {} in ClientObserver", clientID);
+                disconnectClient(clientID, this);
+            } catch (InterruptedException ie){
+                EventLog.warn("Writer for client {} interrupted.", clientID);
             }
         }
-    }
 
-    class ServerView extends Application{
+        // Stops the writer thread.
         @Override
-        public void start(Stage primaryStage){
+        public void close(){
+            outboundQueue.close();
+        }
+    }
+
+    // Writes data only to the given clients instead of notifying every observer. Clients that already left are skipped.
+    private void sendTo(Collection<Integer> clientIDs, Object data){
+        sendTo(clientIDs, new Broadcast(data));
+    }
+
+    private void sendTo(Collection<Integer> clientIDs, Broadcast broadcast){
+        int recipients = 0;
+        for(Integer clientID : clientIDs){
+            ClientConnection clientConnection = clientData.get(clientID);
+            if(clientConnection != null){
+                clientConnection.clientObserver.update(this, broadcast);
+                recipients++;
+            }
+        }
+        broadcast.release();
+        if(broadcast.getData() instanceof Message){
+            metrics.messagesOut.add(recipients);
+        }
+    }
+
+    // Stops relaying to a client and closes his connection. Only removes the connection of the given observer, or any if
+    // it's null, so a dead connection noticed late can't remove the one the client has since resumed on. Returns false if
+    // there was nothing to remove, so a client cut off by his reader and his writer at the same time is only removed once.
+    private boolean removeClient(int clientID, Observer clientObserver){
+        ClientConnection clientConnection = clientData.get(clientID);
+        if(clientConnection == null || (clientObserver != null && clientConnection.clientObserver != clientObserver)
+                || !clientData.remove(clientID, clientConnection)){
+            return false;
+        }
+        deleteObserver(clientConnection.clientObserver);
+        forgetAttachmentWaits(clientID);
+        for(Closeable resource : clientConnection.resources){
             try {
-                StackPane stackPane = new StackPane();
-                // Sometimes we have multiple possible IP addresses. Display all options.
-                List<String> possibleAddresses = new ArrayList<String>();
-                Enumeration<NetworkInterface> interfaceEnumeration = NetworkInterface.getNetworkInterfaces();
-                while(interfaceEnumeration.hasMoreElements()){
-                    NetworkInterface networkInterface = interfaceEnumeration.nextElement();
-                    if(networkInterface.isLoopback() || !networkInterface.isUp()){
-                        continue;
-                    }
-                    Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
-                    while(addresses.hasMoreElements()){
-                        InetAddress addr = addresses.nextElement();
-                        if(addr instanceof Inet4Address){
-                            possibleAddresses.add(addr.toString().substring(1)); // Address is displayed as /123.456.78.9. Eliminate the /.
+                resource.close();
+            }catch(IOException ioe){
+                EventLog.warn("Could not remove client {}", clientID);
+            }
+        }
+        return true;
+    }
+
+    // Cuts off a client the server can no longer read from or write to and tells everyone else he is gone. Does nothing if
+    // that connection was already removed or replaced.
+    void disconnectClient(int clientID, Observer clientObserver){
+        if(removeClient(clientID, clientObserver)){
+            unregisterUser(clientID);
+        }
+    }
+
+    // Adds a registered user and tells everyone. Returns false if he already was one. The change and its broadcast
+    // happen under one lock, so clients get presence changes in the order they happened, one version apart.
+    private synchronized boolean registerUser(int clientID){
+        if(!registeredUsers.add(clientID)){
+            return false;
+        }
+        notifyObservers(new PresenceDelta(++presenceVersion, clientID, true));
+        return true;
+    }
+
+    private synchronized void unregisterUser(int clientID){
+        if(registeredUsers.remove(clientID)){
+            notifyObservers(new PresenceDelta(++presenceVersion, clientID, false));
+        }
+    }
+
+    void clear(){
+        for(int clientID : clientData.keys()){
+            removeClient(clientID, null);
+        }
+    }
+
+    // Handles one object from a client. ClientObservers see change in server and relay data to clients. Called by the
+    // ClientHandler threads in the blocking engine, or by the workers in the NIO engine, so many at once.
+    void handle(int senderID, Object dataFromClient){
+        if(dataFromClient instanceof Integer){
+            // This client sent its client id to be added to or removed from registered users. So, tell ALL clients who joined or left.
+            if((Integer) dataFromClient != senderID){ // Only ever his own. Anyone else's would cut that client off.
+                EventLog.warn("Client {} tried to register or unregister client {}", senderID, dataFromClient);
+            }else if(!registerUser(senderID)){ // Already registered, so he is leaving.
+                removeClient(senderID, null);
+                unregisterUser(senderID);
+            }
+        }else if (dataFromClient instanceof Group){
+            EventLog.debug("Server received {}", dataFromClient);
+            Group group = (Group)dataFromClient;
+            if(group.getGroupID() == -1){ // Indicates group is asking for proper id.
+                group.setGroupID(currentGroupNumber.getAndIncrement());
+                if(EventLog.isDebugEnabled()){
+                    EventLog.debug("Here ya go, number {}", group.getGroupID());
+                }
+            }
+            Group logged = new Group(group.getClientIDs(), group.getGroupName()); // Only the membership. Messages are logged one by one.
+            logged.setGroupID(group.getGroupID());
+            synchronized (groupLock(group.getGroupID())){
+                log(group.getGroupID(), logged);
+                sendTo(groupRoutingTable.update(group), group); // Old members learn they were removed, new members learn they were added.
+            }
+        }else if (dataFromClient instanceof GroupDelta){
+            EventLog.debug("Server received {}", dataFromClient);
+            GroupDelta delta = (GroupDelta)dataFromClient;
+            synchronized (groupLock(delta.getGroupID())){
+                GroupRoutingTable.GroupChange change = groupRoutingTable.apply(delta);
+                if(change != null){
+                    log(delta.getGroupID(), delta);
+                    sendTo(change.getOldMembers(), delta); // Everyone who already has the group, including anyone removed, applies the delta to his copy.
+                    sendTo(change.getJoinedMembers(), change.getSnapshot()); // New members don't have a copy yet.
+                }
+            }
+        }else if (dataFromClient instanceof Message){
+            long received = System.nanoTime();
+            metrics.messagesIn.increment();
+            Message message = (Message)dataFromClient;
+            if(message.getAttachments() != null){
+                for(Attachment attachment : message.getAttachments()){
+                    expectUpload(senderID, attachment.getHash());
+                }
+            }
+            synchronized (groupLock(message.getIntendedGroupID())){ // Otherwise a later sequence could be queued first.
+                Set<Integer> members = groupRoutingTable.getMembers(message.getIntendedGroupID());
+                if(!members.isEmpty()){
+                    message.setSequence(log(message.getIntendedGroupID(), message)); // Members can tell from the sequence what they have and haven't seen.
+                }
+                sendTo(members, new Broadcast(message, received, metrics::recordFanOut));
+            }
+        }else if (dataFromClient instanceof AttachmentData){ // Uploaded ahead of the message that uses it.
+            AttachmentData attachmentData = (AttachmentData)dataFromClient;
+            if(!Attachment.isHash(attachmentData.getHash())){
+                EventLog.warn("Client {} uploaded an attachment with a bad hash", senderID);
+                return;
+            }
+            try {
+                attachmentStore.put(attachmentData.getHash(), attachmentData.getBytes());
+            } catch (IOException e) {
+                EventLog.warn("Could not store attachment from client {}: {}", senderID, e.getMessage());
+                return;
+            }
+            AttachmentWait wait;
+            synchronized (attachmentWaiters){
+                wait = attachmentWaiters.remove(attachmentData.getHash());
+            }
+            if(wait != null && !wait.waiters.isEmpty()){
+                sendTo(wait.waiters, attachmentData);
+            }
+        }else if (dataFromClient instanceof AttachmentRequest){ // A client is about to show an image and needs its bytes.
+            String hash = ((AttachmentRequest)dataFromClient).getHash();
+            if(!Attachment.isHash(hash)){
+                EventLog.warn("Client {} asked for an attachment with a bad hash", senderID);
+                return;
+            }
+            try {
+                byte[] bytes = attachmentStore.get(hash);
+                if(bytes == null){
+                    synchronized (attachmentWaiters){ // Checked again under the lock, so an upload can't land in between.
+                        expireAttachmentWaits();
+                        AttachmentWait wait = attachmentWaiters.get(hash);
+                        if(wait != null && !attachmentStore.contains(hash)){
+                            wait.waiters.add(senderID); // Asked of the sender already. He gets it when it comes.
+                            return;
                         }
                     }
+                    bytes = attachmentStore.get(hash);
                 }
-                String text;
-                if(possibleAddresses.size() == 0){
-                    text = "Could not find any networks. Open your WiFi network preferences to find the IP address.\nIf multiple options are available, pick IPv4.";
-                }else if (possibleAddresses.size() == 1){
-                    text = "Connect to " + possibleAddresses.get(0);
+                if(bytes != null){
+                    sendTo(Collections.singleton(senderID), new AttachmentData(hash, bytes));
                 }else{
-                    text = "Multiple network options are available. Try:\n";
-                    for(String possibleAddress : possibleAddresses){
-                        text = text.concat(possibleAddress + "\n");
-                    }
+                    EventLog.warn("Client {} asked for unknown attachment {}", senderID, hash);
+                }
+            } catch (IOException e) {
+                EventLog.warn("Could not read attachment {}", hash);
+            }
+        }else if (dataFromClient instanceof PresenceRequest){ // He missed a presence change.
+            synchronized (this){ // So no change slips in between the snapshot and the deltas after it.
+                sendTo(Collections.singleton(senderID), new PresenceSnapshot(presenceVersion, registeredUsers.toList()));
+            }
+        }else if (dataFromClient instanceof HistoryRequest){ // A client scrolled up past what it holds, or just opened a group.
+            HistoryRequest request = (HistoryRequest)dataFromClient;
+            if(!groupRoutingTable.getMembers(request.getGroupID()).contains(senderID)){
+                EventLog.warn("Client {} asked for history of group {} he is not in", senderID, request.getGroupID());
+                sendTo(Collections.singleton(senderID), new HistoryPage(request.getGroupID(), request.getCursor(), request.isOlder(), new ArrayList<Message>(), true)); // So he stops waiting for it. His copy stays.
+            }else{
+                try {
+                    sendTo(Collections.singleton(senderID), messageLog.readPage(request));
+                } catch (IOException e) {
+                    EventLog.warn("Could not read history of group {}: {}", request.getGroupID(), e.getMessage());
+                }
+            }
+        }else{
+            notifyObservers(dataFromClient);
+        }
+        EventLog.debug("Server sent {}", dataFromClient);
+    }
+
+    // A message uses an attachment. If we don't have its bytes (the sender skipped the upload because he thought we had
+    // them, or our copy is gone), ask him for them, and hold on to whoever asks for them meanwhile. Every sender of a
+    // missing attachment is asked, in case an earlier one left before answering.
+    private void expectUpload(int senderID, String hash){
+        if(!Attachment.isHash(hash)){
+            EventLog.warn("Client {} sent a message with a bad attachment hash", senderID);
+            return;
+        }
+        if(attachmentStore.contains(hash)){
+            return;
+        }
+        synchronized (attachmentWaiters){
+            if(attachmentStore.contains(hash)){
+                return;
+            }
+            expireAttachmentWaits();
+            AttachmentWait wait = attachmentWaiters.computeIfAbsent(hash, missing -> new AttachmentWait());
+            wait.senders.add(senderID);
+            wait.deadline = System.currentTimeMillis() + ATTACHMENT_WAIT_MILLIS; // A new sender gets the full wait.
+        }
+        sendTo(Collections.singleton(senderID), new AttachmentRequest(hash));
+    }
+
+    // Drops the attachments nobody is going to upload: every sender asked for them has left, or none answered in time.
+    // Their waiters are dropped with them and can ask again. Under the attachmentWaiters lock.
+    private void expireAttachmentWaits(){
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, AttachmentWait>> waits = attachmentWaiters.entrySet().iterator();
+        while(waits.hasNext()){
+            Map.Entry<String, AttachmentWait> entry = waits.next();
+            AttachmentWait wait = entry.getValue();
+            wait.senders.removeIf(senderID -> !clientData.containsKey(senderID)); // Left before removeClient could see him as a sender.
+            if(wait.senders.isEmpty() || now > wait.deadline){
+                EventLog.info("Gave up waiting for attachment {}", entry.getKey());
+                waits.remove();
+            }
+        }
+    }
+
+    // A client left: he won't upload what he was asked for, and has nobody to send the bytes he was waiting for to.
+    private void forgetAttachmentWaits(int clientID){
+        synchronized (attachmentWaiters){
+            Iterator<AttachmentWait> waits = attachmentWaiters.values().iterator();
+            while(waits.hasNext()){
+                AttachmentWait wait = waits.next();
+                wait.waiters.remove(clientID);
+                if(wait.senders.remove(clientID) && wait.senders.isEmpty()){
+                    waits.remove();
                 }
-                primaryStage.setOnCloseRequest(event -> {
-                    System.out.println("Closing server");
-                    clear();
-                    System.exit(0);
-                });
-                Label label = new Label(text);
-                label.setFont(Font.font(50));
-                stackPane.getChildren().add(label);
-                primaryStage.setScene(new Scene(stackPane));
-                primaryStage.show();
-            }catch (Exception e){}
-            clear(); // If server crashed instead of closing naturally, sever all connections.
+            }
         }
     }
 
+    // Observes input from a client and hands it to the server.
+    class ClientHandler implements Runnable {
+        // This thread will listen for data coming in to the server over the socket and notify observers of it. Therefore, we need an InputStream to listen from.
+
+        private Socket connectionToClient;
+
+        public ClientHandler(Socket connectionToClient) {
+            this.connectionToClient = connectionToClient;
+        }
+
+        // Agrees on a codec with the client, starts his writer, then observes input from him. Sets server as changed. ClientObserver sees change in server and relays data to other clients.
+        @Override
+        public void run() {
+            int clientID = -1;
+            ClientObserver clientObserver = null;
+            ConnectionStats stats = new ConnectionStats(metrics);
+            try {
+                DataInputStream inputFromClient = new DataInputStream(new BufferedInputStream(connectionToClient.getInputStream()));
+                DataOutputStream outputToClient = new DataOutputStream(new BufferedOutputStream(connectionToClient.getOutputStream(), config.getWriteBatchBytes())); // Holds one batch.
+                WireCodec codec = WireCodec.accept(inputFromClient, outputToClient);
+                Object hello = read(inputFromClient, codec, stats, Frames.MAX_HELLO_LENGTH);
+                if(!(hello instanceof Hello)){
+                    throw new IOException("Expected a hello, got " + hello);
+                }
+                Welcome welcome = welcome((Hello) hello);
+                clientID = welcome.getClientID();
+
+                // Create ClientObserver to output to client from server when server changes. It gets its own writer thread so a slow client can't hold up anyone else.
+                clientObserver = new ClientObserver(clientID, outputToClient, codec, stats);
+                ServerThreads.start(clientObserver, "writer-" + clientID);
+                addClient(welcome, clientObserver, stats, clientObserver, connectionToClient);
+
+                while (true) {
+                    handle(clientID, read(inputFromClient, codec, stats, Frames.MAX_FRAME_LENGTH));
+                }
+            } catch (IOException e) {
+                EventLog.info("Could not read data from client");
+            } catch (RuntimeException e) { // A frame we couldn't make sense of, or a bug. Disconnect him like any broken connection.
+                EventLog.warn("Dropping client {} after {}", clientID, e);
+            }
+            if(clientObserver == null){
+                try {
+                    connectionToClient.close(); // Never finished saying hello.
+                } catch (IOException ioe) {
+                    EventLog.warn("Could not close connection");
+                }
+            }else{
+                disconnectClient(clientID, clientObserver); // Does nothing if he already left properly or resumed on another connection.
+            }
+        }
+
+        private Object read(DataInputStream inputFromClient, WireCodec codec, ConnectionStats stats, int maxLength) throws IOException {
+            byte[] body = Frames.readBody(inputFromClient, maxLength);
+            stats.bytesRead(4 + body.length); // The length prefix came in too.
+            stats.frameRead();
+            return codec.decode(body, 0, body.length);
+        }
+    }
+
+    // An attachment we asked for: who was asked to upload it, who wants it, and when we stop waiting.
+    private static class AttachmentWait {
+        private Set<Integer> senders = new HashSet<Integer>();
+        private Set<Integer> waiters = new HashSet<Integer>();
+        private long deadline;
+    }
+
     class ClientConnection{
-        private ClientObserver clientObserver;
-        private InputStream inputStream;
-        private OutputStream outputStream;
-        public ClientConnection(ClientObserver clientObserver, InputStream inputStream, OutputStream outputStream){
+        private Observer clientObserver;
+        private ConnectionStats stats;
+        private Closeable[] resources; // Everything to close when the client leaves: his writer, socket, channel...
+        public ClientConnection(Observer clientObserver, ConnectionStats stats, Closeable... resources){
             this.clientObserver = clientObserver;
-            this.inputStream = inputStream;
-            this.outputStream = outputStream;
+            this.stats = stats;
+            this.resources = resources;
         }
     }
 }
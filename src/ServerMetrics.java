@@ -0,0 +1,261 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+// What the server is doing, cheap enough to always be on: totals are LongAdders, which threads add to without
+// contending, latencies go into LatencyHistograms (one increment each), and per-connection numbers live in each
+// connection's ConnectionStats. Everything else (rates, percentiles, the per-connection list) is only worked out when
+// someone looks.
+//
+// Shown over JMX as chat:type=ServerMetrics, and as plain text at http://127.0.0.1:<-Dchat.metricsPort>/metrics
+// (default 8001, 0 for none), only on the loopback interface. Fan-out is the time from the server having a message
+// to its last recipient's copy being written (or dropped); write is how long one batch of frames took to get into a
+// socket, from the writer starting on its first frame to the flush. Both are over the last complete window of
+// -Dchat.metricsWindow seconds (default 60). Message rates are over the last 10 seconds. Frames per flush shows how
+// well writes coalesce.
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final int WINDOW_SECONDS = Integer.getInteger("chat.metricsWindow", 60);
+    private static final int RATE_SECONDS = 10;
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder(); // Counted per recipient.
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder flushes = new LongAdder(); // Socket writes of one or more frames.
+
+    private final IntSupplier connectedClients;
+    private final IntSupplier groups;
+    private final Supplier<Collection<ConnectionStats>> connections;
+    private volatile LatencyHistogram fanOut, write; // Being recorded into.
+    private volatile LatencyHistogram lastFanOut, lastWrite; // The last complete window. Null until there is one.
+    private volatile double messagesInRate, messagesOutRate;
+    private long[] messagesInSamples, messagesOutSamples; // Totals a second apart, oldest overwritten first. Sampler thread only.
+    private int samples;
+
+    public ServerMetrics(IntSupplier connectedClients, IntSupplier groups, Supplier<Collection<ConnectionStats>> connections){
+        this.connectedClients = connectedClients;
+        this.groups = groups;
+        this.connections = connections;
+        fanOut = new LatencyHistogram();
+        write = new LatencyHistogram();
+        messagesInSamples = new long[RATE_SECONDS + 1];
+        messagesOutSamples = new long[RATE_SECONDS + 1];
+    }
+
+    // Starts sampling, and registers the MBean and opens the text endpoint on the sampler thread, since loading JMX
+    // takes longer than the rest of startup and chat shouldn't wait for it.
+    public void start(int port){
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.execute(() -> publish(port));
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Neither is worth not serving chat over, so failures are only reported.
+    private void publish(int port){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            EventLog.warn("Could not register metrics with JMX: {}", e.getMessage());
+        }
+        if(port > 0){
+            try {
+                HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                httpServer.createContext("/metrics", exchange -> {
+                    byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(body);
+                    }
+                });
+                httpServer.setExecutor(null); // Its own single thread. Scrapes are rare.
+                httpServer.start();
+            } catch (IOException e) {
+                EventLog.warn("Could not serve metrics on port {}: {}", port, e.getMessage());
+            }
+        }
+    }
+
+    void recordFanOut(long nanos){
+        fanOut.record(nanos);
+    }
+
+    void recordWrite(long nanos){
+        write.record(nanos);
+    }
+
+    // Once a second: message rates, and a fresh pair of histograms every window.
+    private void sample(){
+        int slot = samples % messagesInSamples.length;
+        messagesInSamples[slot] = messagesIn.sum();
+        messagesOutSamples[slot] = messagesOut.sum();
+        samples++;
+        int seconds = Math.min(samples - 1, RATE_SECONDS);
+        if(seconds > 0){
+            int oldest = (samples - 1 - seconds) % messagesInSamples.length;
+            messagesInRate = (messagesInSamples[slot] - messagesInSamples[oldest]) / (double) seconds;
+            messagesOutRate = (messagesOutSamples[slot] - messagesOutSamples[oldest]) / (double) seconds;
+        }
+        if(samples % WINDOW_SECONDS == 0){
+            lastFanOut = fanOut;
+            lastWrite = write;
+            fanOut = new LatencyHistogram();
+            write = new LatencyHistogram();
+        }
+    }
+
+    private LatencyHistogram recentFanOut(){
+        LatencyHistogram histogram = lastFanOut;
+        return histogram == null ? fanOut : histogram; // Before the first window is over, what we have so far.
+    }
+
+    private LatencyHistogram recentWrite(){
+        LatencyHistogram histogram = lastWrite;
+        return histogram == null ? write : histogram;
+    }
+
+    // Prometheus' text format, so anything that scrapes that can read it, but plain enough for curl.
+    public String text(){
+        StringBuilder text = new StringBuilder(1024);
+        line(text, "chat_connected_clients", "", getConnectedClients());
+        line(text, "chat_groups", "", getGroups());
+        line(text, "chat_messages_in_total", "", getMessagesIn());
+        line(text, "chat_messages_out_total", "", getMessagesOut());
+        line(text, "chat_messages_in_per_second", "", getMessagesInPerSecond());
+        line(text, "chat_messages_out_per_second", "", getMessagesOutPerSecond());
+        line(text, "chat_bytes_in_total", "", getBytesIn());
+        line(text, "chat_bytes_out_total", "", getBytesOut());
+        line(text, "chat_frames_out_total", "", framesOut.sum());
+        line(text, "chat_flushes_total", "", flushes.sum());
+        histogram(text, "chat_fan_out_seconds", recentFanOut());
+        histogram(text, "chat_write_seconds", recentWrite());
+        for(ConnectionStats stats : connections.get()){
+            String label = "{client=\"" + stats.getClientID() + "\"}";
+            line(text, "chat_connection_queue_depth", label, stats.getQueueDepth());
+            line(text, "chat_connection_dropped_total", label, stats.getDropped());
+            line(text, "chat_connection_bytes_in_total", label, stats.getBytesIn());
+            line(text, "chat_connection_bytes_out_total", label, stats.getBytesOut());
+            line(text, "chat_connection_frames_in_total", label, stats.getFramesIn());
+            line(text, "chat_connection_frames_out_total", label, stats.getFramesOut());
+            line(text, "chat_connection_flushes_total", label, stats.getFlushes());
+            line(text, "chat_connection_write_seconds_mean", label, stats.getMeanWriteNanos() / 1e9);
+            line(text, "chat_connection_write_seconds_max", label, stats.getMaxWriteNanos() / 1e9);
+        }
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, LatencyHistogram histogram){
+        line(text, name, "{quantile=\"0.5\"}", histogram.percentile(0.5) / 1e9);
+        line(text, name, "{quantile=\"0.99\"}", histogram.percentile(0.99) / 1e9);
+        line(text, name, "{quantile=\"0.999\"}", histogram.percentile(0.999) / 1e9);
+        line(text, name, "{quantile=\"1\"}", histogram.getMax() / 1e9);
+        line(text, name + "_count", "", histogram.getCount());
+    }
+
+    private static void line(StringBuilder text, String name, String labels, Object value){
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public int getConnectedClients(){
+        return connectedClients.getAsInt();
+    }
+
+    @Override
+    public int getGroups(){
+        return groups.getAsInt();
+    }
+
+    @Override
+    public long getMessagesIn(){
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut(){
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond(){
+        return messagesInRate;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond(){
+        return messagesOutRate;
+    }
+
+    @Override
+    public long getBytesIn(){
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getFramesPerFlush(){
+        long batches = flushes.sum();
+        return batches == 0 ? 0 : framesOut.sum() / (double) batches;
+    }
+
+    @Override
+    public double getFanOutP50Millis(){
+        return recentFanOut().percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getFanOutP99Millis(){
+        return recentFanOut().percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getFanOutP999Millis(){
+        return recentFanOut().percentile(0.999) / 1e6;
+    }
+
+    @Override
+    public double getFanOutMaxMillis(){
+        return recentFanOut().getMax() / 1e6;
+    }
+
+    @Override
+    public double getWriteP99Millis(){
+        return recentWrite().percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public String[] getConnections(){
+        List<String> lines = new ArrayList<String>();
+        for(ConnectionStats stats : connections.get()){
+            lines.add("client " + stats.getClientID() + ": queue " + stats.getQueueDepth() + ", dropped " + stats.getDropped()
+                    + ", in " + stats.getBytesIn() + " B, out " + stats.getBytesOut() + " B in " + stats.getFlushes() + " flushes, write mean "
+                    + stats.getMeanWriteNanos() / 1e6 + " ms, max " + stats.getMaxWriteNanos() / 1e6 + " ms");
+        }
+        return lines.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,19 @@
+// What ServerMetrics shows over JMX (jconsole, VisualVM...) as chat:type=ServerMetrics. Latencies are in milliseconds
+// over the last complete window, like the text endpoint's.
+public interface ServerMetricsMBean {
+    int getConnectedClients();
+    int getGroups();
+    long getMessagesIn();
+    long getMessagesOut();
+    double getMessagesInPerSecond();
+    double getMessagesOutPerSecond();
+    long getBytesIn();
+    long getBytesOut();
+    double getFramesPerFlush();
+    double getFanOutP50Millis();
+    double getFanOutP99Millis();
+    double getFanOutP999Millis();
+    double getFanOutMaxMillis();
+    double getWriteP99Millis();
+    String[] getConnections(); // One line per connected client.
+}
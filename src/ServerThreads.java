@@ -0,0 +1,51 @@
+import java.lang.reflect.Method;
+
+// Creates the server's per-client reader and writer threads, and the LoadGenerator's readers. With
+// -Dchat.threads=virtual they are virtual threads (Java 21+), so ten thousand mostly idle clients cost ten thousand
+// small heap objects instead of ten thousand native threads with their own stacks, while ClientHandler and
+// ClientObserver keep their plain blocking code.
+// Looked up reflectively so the server still builds and runs on older JDKs, where it falls back to platform threads.
+public class ServerThreads {
+    private static final Object VIRTUAL_BUILDER = virtualBuilder();
+    private static final Method UNSTARTED = unstartedMethod();
+
+    private ServerThreads(){}
+
+    private static Object virtualBuilder(){
+        if(!System.getProperty("chat.threads", "platform").equalsIgnoreCase("virtual")){
+            return null;
+        }
+        try {
+            return Thread.class.getMethod("ofVirtual").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            EventLog.warn("Virtual threads need Java 21 or newer. Using platform threads.");
+            return null;
+        }
+    }
+
+    private static Method unstartedMethod(){
+        try {
+            return VIRTUAL_BUILDER == null ? null : Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Starts a thread for one client's reads or writes.
+    public static Thread start(Runnable runnable, String name){
+        Thread thread = null;
+        if(UNSTARTED != null){
+            try {
+                thread = (Thread) UNSTARTED.invoke(VIRTUAL_BUILDER, runnable);
+            } catch (ReflectiveOperationException e) {
+                EventLog.warn("Could not create virtual thread. Using a platform thread.");
+            }
+        }
+        if(thread == null){
+            thread = new Thread(runnable);
+        }
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+}
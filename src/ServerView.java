@@ -0,0 +1,78 @@
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.embed.swing.JFXPanel;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.layout.StackPane;
+import javafx.scene.text.Font;
+import javafx.stage.Stage;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+// Optional window on top of the server that tells whoever started it which address clients should connect to.
+// Closing it stops the server.
+public class ServerView extends Application{
+    private ServerMain server;
+
+    public ServerView(ServerMain server){
+        this.server = server;
+    }
+
+    // Starts JavaFX and opens the window. Returns once it's on its way, so the caller can go on to serve.
+    public static void show(ServerMain server){
+        new JFXPanel(); // Initialize the JavaFX environment. I don't call launch() since that creates a new
+        // instance of View using the default constructor, but each View needs a server, which is passed in the
+        // constructor. The bypass: do everything that launch() does, but manually, to keep this instead.
+        Platform.runLater(() -> new ServerView(server).start(new Stage()));
+    }
+
+    @Override
+    public void start(Stage primaryStage){
+        try {
+            StackPane stackPane = new StackPane();
+            // Sometimes we have multiple possible IP addresses. Display all options.
+            List<String> possibleAddresses = new ArrayList<String>();
+            Enumeration<NetworkInterface> interfaceEnumeration = NetworkInterface.getNetworkInterfaces();
+            while(interfaceEnumeration.hasMoreElements()){
+                NetworkInterface networkInterface = interfaceEnumeration.nextElement();
+                if(networkInterface.isLoopback() || !networkInterface.isUp()){
+                    continue;
+                }
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while(addresses.hasMoreElements()){
+                    InetAddress addr = addresses.nextElement();
+                    if(addr instanceof Inet4Address){
+                        possibleAddresses.add(addr.toString().substring(1)); // Address is displayed as /123.456.78.9. Eliminate the /.
+                    }
+                }
+            }
+            String text;
+            if(possibleAddresses.size() == 0){
+                text = "Could not find any networks. Open your WiFi network preferences to find the IP address.\nIf multiple options are available, pick IPv4.";
+            }else if (possibleAddresses.size() == 1){
+                text = "Connect to " + possibleAddresses.get(0);
+            }else{
+                text = "Multiple network options are available. Try:\n";
+                for(String possibleAddress : possibleAddresses){
+                    text = text.concat(possibleAddress + "\n");
+                }
+            }
+            primaryStage.setOnCloseRequest(event -> {
+                EventLog.info("Closing server");
+                server.clear();
+                System.exit(0);
+            });
+            Label label = new Label(text);
+            label.setFont(Font.font(50));
+            stackPane.getChildren().add(label);
+            primaryStage.setScene(new Scene(stackPane));
+            primaryStage.show();
+        }catch (Exception e){}
+        server.clear(); // If server crashed instead of closing naturally, sever all connections.
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which client ID each session token stands for, so a client that reconnects (even after the server restarted) gets
+// his ID back and with it his groups. Tokens are random, so one client can't guess another's. Kept in a text file of
+// "token clientID" lines that only grows by a line per new client.
+public class SessionRegistry {
+    private Map<String, Integer> sessions;
+    private Writer file;
+    private SecureRandom random;
+    private int maxClientID = -1;
+
+    public SessionRegistry(File sessionFile) throws IOException {
+        sessions = new ConcurrentHashMap<String, Integer>();
+        random = new SecureRandom();
+        if(sessionFile.exists()){
+            try (BufferedReader reader = new BufferedReader(new FileReader(sessionFile))) {
+                String line;
+                while((line = reader.readLine()) != null){
+                    String[] parts = line.split(" ");
+                    if(parts.length == 2){ // Anything else is a line cut short when we last stopped.
+                        int clientID = Integer.parseInt(parts[1]);
+                        sessions.put(parts[0], clientID);
+                        maxClientID = Math.max(maxClientID, clientID);
+                    }
+                }
+            }
+        }
+        file = new BufferedWriter(new FileWriter(sessionFile, true));
+    }
+
+    // Returns the client ID a token was issued for, or null if the token is unknown.
+    public Integer resume(String sessionToken){
+        return sessionToken == null ? null : sessions.get(sessionToken);
+    }
+
+    // Issues a token for a new client.
+    public synchronized String create(int clientID) throws IOException {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for(byte b : bytes){
+            token.append(String.format("%02x", b));
+        }
+        sessions.put(token.toString(), clientID);
+        file.write(token + " " + clientID + "\n");
+        file.flush();
+        return token.toString();
+    }
+
+    // Highest client ID any session was issued for, or -1.
+    public int getMaxClientID(){
+        return maxClientID;
+    }
+}
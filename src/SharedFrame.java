@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+// One encoded frame (length and body) shared by every client it is being written to. Nobody changes the bytes after
+// encoding, so any number of writers can read them at once. Each writer holds a reference until its write completes,
+// and once the last one lets go the bytes are dropped, so a big image frame doesn't outlive its slowest recipient.
+public class SharedFrame {
+    private byte[] bytes;
+    private final int length;
+    private final boolean droppable; // Chat messages can be dropped for a slow client. Everything else can't.
+    private final AtomicInteger references;
+    private long startNanos;
+    private LongConsumer onLastRelease; // Told how long the frame lived, once every writer is done with it.
+
+    public SharedFrame(byte[] bytes, boolean droppable){
+        this.bytes = bytes;
+        this.length = bytes.length;
+        this.droppable = droppable;
+        this.references = new AtomicInteger(1); // The encoder's reference. Released once every recipient has his own.
+    }
+
+    // Times the frame from startNanos (System.nanoTime) until its last reference is released. Set before anyone else
+    // can see the frame.
+    public void timeUntilReleased(long startNanos, LongConsumer onLastRelease){
+        this.startNanos = startNanos;
+        this.onLastRelease = onLastRelease;
+    }
+
+    // Takes another reference for one more recipient.
+    public SharedFrame retain(){
+        if(references.getAndIncrement() <= 0){
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    // Gives up a reference once a write is done (or the frame was dropped). The last one frees the bytes.
+    public void release(){
+        int remaining = references.decrementAndGet();
+        if(remaining == 0){
+            bytes = null;
+            if(onLastRelease != null){
+                onLastRelease.accept(System.nanoTime() - startNanos);
+            }
+        }else if (remaining < 0){
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    public byte[] getBytes(){
+        return bytes;
+    }
+
+    // A buffer over the shared bytes with its own position, for a writer that may only get part of it out at a time.
+    public ByteBuffer newBuffer(){
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    public boolean isDroppable(){
+        return droppable;
+    }
+}
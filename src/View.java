@@ -1,6 +1,8 @@
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.embed.swing.JFXPanel;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.Insets;
@@ -26,15 +28,20 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class View extends Application {
     private ClientMain client; // Each View also has a client to get data from (like group list, messages, etc.).
     // View x has client y and client y has View x.
-    private ObjectOutputStream outputToServer;
-    protected InputStream inputStream;
-    protected OutputStream outputStream;
+    private DataOutputStream outputToServer; // Sender thread only, like the codec.
+    private WireCodec codec;
+    protected volatile InputStream inputStream;
+    protected volatile OutputStream outputStream;
     private Group currentGroup;
     private List<File> selectedImages;
 
@@ -48,7 +55,9 @@ public class View extends Application {
     private double smallButtonWidth = 0.075*screenWidth;
 
     private VBox groupListVBox;
-    private VBox messagesVBox;
+    private Map<Integer, Label> groupRows; // Group ID -> its row in groupListVBox, so one group's row can be updated alone.
+    private ListView<Message> messagesListView; // Only creates cells for the messages on screen, however long the history.
+    private ObservableList<Message> messageItems; // The current group's messages, as shown.
     private Label groupNameLabel;
     private Button editMembersButton;
     private TextField textField;
@@ -56,6 +65,17 @@ public class View extends Application {
 
     private AddUsersStage addUsersStage;
 
+    private ImageUploader imageUploader;
+    private ImageCache imageCache; // Decoded images, so a redraw doesn't decode the whole history again.
+    private ExecutorService imageLoader; // Reads and decodes images off the JavaFX thread.
+    private Set<String> loadingImages; // Hashes queued on the image loader. JavaFX thread only.
+    private Set<String> unreadableImages; // Hashes whose bytes we have but can't decode. JavaFX thread only.
+    private ExecutorService sender; // Writes everything we send to the server, in order.
+    private BlockingQueue<Runnable> sendQueue; // What the sender has yet to write. While it isn't empty, writes wait to be flushed together.
+    private CompletableFuture<Void> lastMessageSent; // Next message waits for this one, so messages can't overtake each other.
+    private List<Object> unsent; // What we couldn't send while the connection was down, sent again once it's back. Sender thread only.
+    private List<Object> unflushed; // Written to the stream's buffer but not flushed yet, so not surely sent. Sender thread only.
+
     public Group getCurrentGroup(){
         return currentGroup;
     }
@@ -67,30 +87,59 @@ public class View extends Application {
     public View(ClientMain client){
         this.client = client;
         selectedImages = new ArrayList<File>();
+        groupRows = new HashMap<Integer, Label>();
+        sendQueue = new LinkedBlockingQueue<Runnable>();
+        sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, sendQueue, runnable -> {
+            Thread thread = new Thread(runnable, "sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lastMessageSent = CompletableFuture.completedFuture(null);
+        unsent = new ArrayList<Object>();
+        unflushed = new ArrayList<Object>();
+        imageCache = new ImageCache(ImageCache.DEFAULT_MAX_BYTES);
+        imageLoader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "image-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loadingImages = new HashSet<String>();
+        unreadableImages = new HashSet<String>();
         try {
 //            init();
             new JFXPanel(); // Initialize the JavaFX environment. I don't call launch() since that creates a new
             // instance of View using the default constructor, but each View needs a client, which is passed in the
             // constructor. The bypass: do everything that launch() does, but manually, to keep this instead.
-            System.out.println("Inited");
+            EventLog.debug("Inited");
             Semaphore semaphore = new Semaphore(1);
             Platform.runLater(() -> {
                 start(new Stage());
-                System.out.println("Called start");
+                EventLog.debug("Called start");
                 semaphore.release();
             });
-            System.out.println("Created View 2");
+            EventLog.debug("Created View 2");
             semaphore.acquire(); // Wait for view to show up.
         }catch (Exception e) {
-            System.out.println("Could not initialize view for client " + client.clientID);
+            EventLog.error("Could not initialize view for client {}", client.clientID);
             e.printStackTrace();
         }
     }
 
-    public void setConnections(ObjectOutputStream outputToServer, InputStream inputStream, OutputStream outputStream) {
-        this.outputToServer = outputToServer;
+    // Called on every (re)connect. The switch happens on the sender thread, after whatever was queued for the old
+    // connection, and what failed to go out on it goes out first on the new one.
+    public void setConnections(DataOutputStream outputToServer, WireCodec codec, InputStream inputStream, OutputStream outputStream) {
         this.inputStream = inputStream;
         this.outputStream = outputStream;
+        sender.execute(() -> {
+            this.outputToServer = outputToServer;
+            this.codec = codec;
+            List<Object> retry = new ArrayList<Object>(unsent);
+            unsent.clear();
+            for(Object object : retry){
+                write(object);
+            }
+            flush();
+        });
     }
 
     private double scale(Image image, double maxWidth, double maxHeight){
@@ -100,7 +149,7 @@ public class View extends Application {
 
     @Override
     public void start(Stage primaryStage){
-        System.out.println("In start");
+        EventLog.debug("In start");
         // Entire screen:
         HBox entireScreen = new HBox(horizontalGap);
         entireScreen.setStyle("-fx-background-color: #B0E0E6;");
@@ -161,11 +210,11 @@ public class View extends Application {
         topPaneHBox.getChildren().addAll(groupNameLabel, editMembersButton);
 
         // Messages pane, containing scrollpane of messages for currently displayed group:
-        messagesVBox = new VBox(verticalGap);
-//                messagesVBox.setPrefSize(screenWidth - sideViewWidth - horizontalGap,screenHeight - 2*smallItemHeight - 2*verticalGap);
-        // Messages scroll pane:
-        ScrollPane messagesScrollPane = new ScrollPane(messagesVBox);
-        messagesScrollPane.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 2*smallItemHeight - 2*verticalGap);
+        messageItems = FXCollections.observableArrayList();
+        messagesListView = new ListView<Message>(messageItems);
+        messagesListView.setCellFactory(listView -> new MessageCell());
+        messagesListView.setFocusTraversable(false);
+        messagesListView.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 2*smallItemHeight - 2*verticalGap);
 
         // Bottom pane containing image HBox (if images selected) and send pane (with text field and upload button):
         VBox bottomPaneVBox = new VBox(0);
@@ -196,30 +245,49 @@ public class View extends Application {
         textField.setDisable(true);
         textField.setOnAction(event -> {
             if(textField.getText().trim().length() > 0 || selectedImages.size() > 0) {
-                ArrayList<byte[]> images = new ArrayList<byte[]>();
-                for (File file : selectedImages) {
-                    try {
-                        BufferedImage bufferedImage = ImageIO.read(new FileInputStream(file));
-                        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                        ImageIO.write(bufferedImage, file.getName().substring(file.getName().lastIndexOf(".") + 1), byteArrayOutputStream);
-                        images.add(byteArrayOutputStream.toByteArray());
-                    } catch (IOException ioe) {
-                        System.out.println("Could not add buffered image from file " + file);
+                // Images are read (and scaled down if huge) in the background so the window doesn't freeze. Messages still
+                // go out in the order they were typed, even if an earlier one is waiting on its images.
+                Integer groupID = currentGroup.getGroupID();
+                String text = textField.getText().trim();
+                // A failure anywhere is logged and the chain carries on, so one bad message can't hold up every one after it.
+                CompletableFuture<List<ImageUploader.PreparedImage>> preparedImages = imageUploader.prepare(new ArrayList<File>(selectedImages)).exceptionally(e -> {
+                    EventLog.warn("Could not prepare images, sending the message without them: {}", e);
+                    return new ArrayList<ImageUploader.PreparedImage>();
+                });
+                lastMessageSent = lastMessageSent.thenCombine(preparedImages, (ignored, images) -> {
+                    ArrayList<Attachment> attachments = new ArrayList<Attachment>();
+                    for(ImageUploader.PreparedImage image : images){
+                        attachments.add(upload(image.getBytes(), image.getFileType()));
                     }
-                }
-                Message message = new Message(currentGroup.getGroupID(), client.clientID, textField.getText().trim(), images);
-                send(message);
-                System.out.println("Sent message to group " + currentGroup);
+                    send(new Message(groupID, client.clientID, text, attachments));
+                    return (Void) null;
+                }).exceptionally(e -> {
+                    EventLog.warn("Could not send message to group {}: {}", groupID, e);
+                    return null;
+                });
+                EventLog.debug("Sending message to group {}", currentGroup);
                 textField.clear();
                 if(selectedImages.size() > 0) {
                     imageHBox.getChildren().clear();
                     bottomPaneVBox.getChildren().remove(imageScrollPane);
-                    messagesScrollPane.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 2*smallItemHeight - 2*verticalGap);
+                    messagesListView.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 2*smallItemHeight - 2*verticalGap);
                     selectedImages.clear();
                 }
             }
         });
 
+        // Progress bar shown above the send pane while images are being prepared:
+        ProgressBar uploadProgressBar = new ProgressBar(0);
+        uploadProgressBar.setPrefWidth(screenWidth - sideViewWidth - horizontalGap);
+        imageUploader = new ImageUploader(progress -> Platform.runLater(() -> {
+            uploadProgressBar.setProgress(progress);
+            if(progress < 1 && !bottomPaneVBox.getChildren().contains(uploadProgressBar)){
+                bottomPaneVBox.getChildren().add(0, uploadProgressBar);
+            }else if (progress >= 1){
+                bottomPaneVBox.getChildren().remove(uploadProgressBar);
+            }
+        }));
+
         // Upload image for upload button:
         Image uploadImage = new Image(getClass().getResourceAsStream("uploadIcon.png"));
         ImageView uploadImageView = new ImageView(uploadImage);
@@ -250,7 +318,7 @@ public class View extends Application {
                 }
             }
             if(selectedImages.size() > 0 && !bottomPaneVBox.getChildren().contains(imageScrollPane)){
-                messagesScrollPane.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 3*smallItemHeight - 2*verticalGap);
+                messagesListView.setPrefSize(screenWidth - sideViewWidth - horizontalGap, screenHeight - 3*smallItemHeight - 2*verticalGap);
                 bottomPaneVBox.getChildren().add(0, imageScrollPane);
             }
         });
@@ -259,18 +327,25 @@ public class View extends Application {
         // Add to bottom pane
         bottomPaneVBox.getChildren().addAll(sendPaneHBox);
         // Add to main view:
-        mainView.getChildren().addAll(topPaneHBox, messagesScrollPane, bottomPaneVBox);
+        mainView.getChildren().addAll(topPaneHBox, messagesListView, bottomPaneVBox);
         // Add to entire screen:
         entireScreen.getChildren().addAll(sideView, mainView);
 
         primaryStage.setOnCloseRequest(event -> {
-            System.out.println("Closing");
-            send(client.clientID); // Send this client ID to remove yourself from the program.
+            EventLog.info("Closing");
+            try {
+                send(client.clientID); // Send this client ID to remove yourself from the program.
+                sender.submit(this::flush).get(5, TimeUnit.SECONDS); // Wait for it (and anything queued before it) to go out.
+            }catch(Exception e){
+                EventLog.warn("Could not say goodbye to server");
+            }
             try {
-                inputStream.close();
-                outputStream.close();
+                if(inputStream != null){
+                    inputStream.close();
+                    outputStream.close();
+                }
             }catch(IOException ioe){
-                System.out.println("Could not close streams");
+                EventLog.warn("Could not close streams");
             }
             System.exit(0);
         });
@@ -278,26 +353,93 @@ public class View extends Application {
         primaryStage.show();
     }
 
-    private void send(Object object){
+    // Queues an object for the sender thread, so the JavaFX thread never waits on the socket (an image upload can take a while).
+    // If more is queued behind it (catching up on every group after a reconnect, say), it is flushed together with the
+    // rest, or whenever the stream's buffer fills up, instead of on its own. Otherwise it goes out right away.
+    Future<?> send(Object object){
+        return sender.submit(() -> {
+            write(object);
+            if(sendQueue.isEmpty()){
+                flush();
+            }
+        });
+    }
+
+    private void write(Object object){
+        if(outputToServer == null || !unsent.isEmpty()){ // Not connected yet, or still down: keep it in order behind the rest.
+            unsent.add(object);
+            return;
+        }
+        try{
+            Frames.write(outputToServer, codec, object); // Each frame is serialized on its own, so the server never gets a stale copy of an object already sent (which reset() used to guard against).
+            unflushed.add(object);
+            EventLog.debug("Sent {}", object);
+        }catch(IOException ioe){
+            EventLog.warn("Could not send {} in send method. Will send it again after reconnecting.", object);
+            unsent.add(object);
+            keepUnflushed();
+        }
+    }
+
+    private void flush(){
+        if(unflushed.isEmpty()){
+            return;
+        }
         try{
-            outputToServer.writeObject(object);
             outputToServer.flush();
-            outputToServer.reset(); // There was a bug where updating a Group object SENT the updated object but the server RECEIVED the old version. Reset "Reset will disregard the state of any objects already written to the stream" to fix this to ignore the fact that an old version of the same object is already in the stream.
-            System.out.println("Sent " + object);
+            unflushed.clear();
         }catch(IOException ioe){
-            System.out.println("Could not send " + object + " in send method");
+            EventLog.warn("Could not send {} objects in flush. Will send them again after reconnecting.", unflushed.size());
+            keepUnflushed();
         }
     }
 
-    public void updateSideView(){
-        groupListVBox.getChildren().clear();
-        for(Group group: client.getGroups()){
-            Label groupLabel = new Label(group.getMessages().size() >= 1 ? group.getMessages().get(group.getMessages().size() - 1).toString() : "Click to start chatting"); // Set preview to last message if there is one.
+    // The connection broke with objects still in the stream's buffer. They go out again first after reconnecting.
+    private void keepUnflushed(){
+        unsent.addAll(0, unflushed);
+        unflushed.clear();
+    }
+
+    // Sends the image's bytes ahead of the message that refers to it. Skips the upload if we already uploaded or fetched
+    // the same image: the server most likely still has it, and if it doesn't, it asks us for the bytes when the message
+    // comes in (see ClientMain), so the image is never missing for good.
+    private Attachment upload(byte[] bytes, String fileType){
+        String hash = Attachment.hash(bytes);
+        if(!client.hasAttachment(hash)){
+            send(new AttachmentData(hash, bytes));
+            client.putAttachment(hash, bytes);
+        }
+        return new Attachment(hash, bytes.length, fileType);
+    }
+
+    // Brings one group's row in the side view up to date instead of rebuilding every row. A new group, or one with new
+    // messages, moves to the top, so the side view stays in most-recent-activity order without ever being sorted.
+    public void updateSideView(Group group, boolean newActivity){
+        Label groupLabel = groupRows.get(group.getGroupID());
+        if(groupLabel == null){
+            groupLabel = new Label();
             groupLabel.setOnMouseClicked(event -> {
                 currentGroup = group;
                 updateMessageView(group);
             });
-            groupListVBox.getChildren().add(groupLabel);
+            groupRows.put(group.getGroupID(), groupLabel);
+            groupListVBox.getChildren().add(0, groupLabel);
+        }else if (newActivity && groupListVBox.getChildren().get(0) != groupLabel){
+            groupListVBox.getChildren().remove(groupLabel);
+            groupListVBox.getChildren().add(0, groupLabel);
+        }
+        List<Message> messages = group.getMessages();
+        String preview = messages.size() >= 1 ? messages.get(messages.size() - 1).toString() : "Click to start chatting"; // Set preview to last message if there is one.
+        if(!preview.equals(groupLabel.getText())){
+            groupLabel.setText(preview);
+        }
+    }
+
+    // Takes a group we are no longer in out of the side view.
+    public void removeFromSideView(Integer groupID){
+        Label groupLabel = groupRows.remove(groupID);
+        if(groupLabel != null){
+            groupListVBox.getChildren().remove(groupLabel);
         }
     }
 
@@ -306,46 +448,154 @@ public class View extends Application {
     }
 
     public void updateMessageView(Group group){
+        if(currentGroup != null && currentGroup != group){
+            client.trimHistory(currentGroup); // Going out of view, so let go of the pages the user scrolled back through.
+        }
         currentGroup = group;
         groupNameLabel.setDisable(group == null);
         editMembersButton.setDisable(group == null);
         textField.setDisable(group == null);
         uploadButton.setDisable(group == null);
         groupNameLabel.setText(group == null ? "No group selected" : group.getGroupName());
-        messagesVBox.getChildren().clear();
-
-        if(group != null){
-            for(Message message : group.getMessages()){
-                if(message.getImages() != null && message.getImages().size() > 0){
-                    // Show images first.
-                    for(byte[] byteArray : message.getImages()){
-                        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArray);
-                        try{
-                            BufferedImage bufferedImage = ImageIO.read(byteArrayInputStream);
-                            Image image = SwingFXUtils.toFXImage(bufferedImage, null); // Create an FX image from a buffered image.
-                            ImageView imageView = new ImageView(image);
-                            double scale = scale(image, screenWidth / 3, screenHeight / 3);
-                            imageView.setFitWidth(scale * image.getWidth());
-                            imageView.setFitHeight(scale * image.getHeight());
-                            messagesVBox.getChildren().add(imageView);
-                        }catch (IOException e){
-                            System.out.println("Could not display image.");
-                        }
-                    }
+        if(group == null){
+            messageItems.clear();
+        }else{
+            messageItems.setAll(group.getMessages());
+            messagesListView.scrollTo(messageItems.size() - 1);
+            if(messageItems.isEmpty()){ // Nothing held, e.g. just added to the group. The server may have its history.
+                client.requestOlderMessages(group);
+            }
+        }
+    }
+
+    // Shows the page of older messages just put in front of the group's messages, keeping the message that was at the
+    // top where it was.
+    public void showOlderMessages(Group group, int count){
+        if(currentGroup != group || count == 0){
+            return;
+        }
+        boolean wasEmpty = messageItems.isEmpty();
+        messageItems.addAll(0, group.getMessages().subList(0, count));
+        messagesListView.scrollTo(wasEmpty ? messageItems.size() - 1 : count);
+    }
+
+    // Appends the messages the group got since it was last shown, instead of redrawing the whole history.
+    public void showNewMessages(Group group){
+        if(currentGroup != group){
+            return;
+        }
+        boolean atBottom = isShowingLastMessage();
+        List<Message> messages = group.getMessages();
+        if(messageItems.size() < messages.size()){
+            messageItems.addAll(messages.subList(messageItems.size(), messages.size()));
+        }
+        if(atBottom){ // Follow the conversation, unless the user scrolled up to read older messages.
+            messageItems.remove(0, client.trimHistory(group)); // Nobody is looking at the old ones, so don't let them pile up.
+            messagesListView.scrollTo(messageItems.size() - 1);
+        }
+    }
+
+    private boolean isShowingLastMessage(){
+        for(Node node : messagesListView.lookupAll(".list-cell")){
+            if(node instanceof MessageCell && ((MessageCell) node).getIndex() >= messageItems.size() - 1 && !((MessageCell) node).isEmpty()){
+                return true;
+            }
+        }
+        return messageItems.isEmpty();
+    }
+
+    // Redraws the messages on screen, e.g. once an image they were waiting for has arrived.
+    public void refreshMessages(){
+        messagesListView.refresh();
+    }
+
+    // One message on screen: its images, then its text. Cells are reused as the user scrolls.
+    class MessageCell extends ListCell<Message> {
+        @Override
+        protected void updateItem(Message message, boolean empty){
+            super.updateItem(message, empty);
+            setText(null);
+            if(empty || message == null){
+                setGraphic(null);
+                return;
+            }
+            if(getIndex() == 0 && currentGroup != null){ // Scrolled to the oldest message we hold. Fetch the page before it.
+                client.requestOlderMessages(currentGroup);
+            }
+            VBox messageVBox = new VBox(verticalGap);
+            if(message.getAttachments() != null){
+                // Show images first.
+                for(Attachment attachment : message.getAttachments()){
+                    messageVBox.getChildren().add(attachmentNode(attachment));
                 }
+            }
+            if(message.getMessage() != null && message.getMessage().length() > 0){
+                Label messageLabel = new Label(message.getMessage());
+                messageLabel.setTextFill(Paint.valueOf(message.getSenderID() == client.clientID ? "blue" : "black")); // If I sent this message, make it blue.
+                messageVBox.getChildren().add(messageLabel);
+            }
+            setGraphic(messageVBox);
+        }
+    }
 
-                if(message.getMessage() != null && message.getMessage().length() > 0){
-                    Label messageLabel = new Label(message.getMessage());
-                    messageLabel.setTextFill(Paint.valueOf(message.getSenderID() == client.clientID ? "blue" : "black")); // If I sent this message, make it blue.
-                    messagesVBox.getChildren().add(messageLabel);
+    // The image for an attachment. Only decoded images are shown straight away. Anything else is read from disk and
+    // decoded on the image loader and shown by a redraw once it's in the cache, so scrolling never waits on the disk.
+    private Node attachmentNode(Attachment attachment){
+        String hash = attachment.getHash();
+        Image image = imageCache.get(hash);
+        if(image == null){ // Not decoded yet, or evicted since.
+            if(unreadableImages.contains(hash)){
+                return new Label("[Image]");
+            }
+            if(loadingImages.add(hash)){
+                imageLoader.execute(() -> loadImage(hash));
+            }
+            return new Label("Loading image...");
+        }
+        ImageView imageView = new ImageView(image);
+        double scale = scale(image, screenWidth / 3, screenHeight / 3);
+        imageView.setFitWidth(scale * image.getWidth());
+        imageView.setFitHeight(scale * image.getHeight());
+        return imageView;
+    }
+
+    // Image loader thread. Decodes an image into the cache, or asks the server for its bytes if we don't have them
+    // yet. Their arrival redraws the messages, which loads the image again.
+    private void loadImage(String hash){
+        byte[] byteArray = client.getAttachment(hash);
+        boolean decoded = false;
+        if(byteArray == null){
+            if(client.markRequested(hash)){
+                send(new AttachmentRequest(hash));
+            }
+        }else{
+            try {
+                BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(byteArray));
+                if(bufferedImage == null){
+                    throw new IOException("Unknown image format");
                 }
+                imageCache.put(hash, SwingFXUtils.toFXImage(bufferedImage, null)); // Create an FX image from a buffered image.
+                decoded = true;
+            } catch (IOException e) {
+                EventLog.warn("Could not display image {}: {}", hash, e.getMessage());
             }
         }
+        boolean unreadable = byteArray != null && !decoded;
+        Platform.runLater(() -> {
+            loadingImages.remove(hash);
+            if(unreadable){
+                unreadableImages.add(hash);
+            }
+            if(byteArray != null){ // Shows the image, or that it can't be shown.
+                refreshMessages();
+            }
+        });
     }
 
     class AddUsersStage extends Stage{
         private Group group;
-        private VBox membersVBox;
+        private VBox membersVBox; // One checkbox per registered user, in ID order.
+        private Map<Integer, CheckBox> checkBoxes; // The same checkboxes by user ID.
         private Button addUsersButton;
         private TextField groupNameTextField;
         public AddUsersStage(Group group){
@@ -366,18 +616,9 @@ public class View extends Application {
             // Members VBox with members scrollPane inside.
             membersVBox = new VBox(0);
 //                membersVBox.setPrefSize(sideViewWidth, screenHeight - 2*smallItemHeight - 2*verticalGap);
+            checkBoxes = new HashMap<Integer, CheckBox>();
             for(Integer userID: client.registeredUsers) {
-                CheckBox checkBox = new CheckBox(userID.toString()); // Default is unselected and enabled
-                if(userID == client.clientID){
-                    checkBox.setSelected(true);
-                    checkBox.setDisable(group == null); // When creating a group, I must be in that group. So, disable selecting myself if this is a new group.
-                }else if(group != null && group.getClientIDs().contains(userID)){ // This is someone else, and the group is not null so it has users and this user is one of them.
-                    checkBox.setSelected(true);
-                }
-                checkBox.selectedProperty().addListener((ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> {
-                    Platform.runLater(() -> addUsersButton.setDisable(groupNameTextField.getText() == null || groupNameTextField.getText().trim().length() == 0 || getSelectedClients(membersVBox).size() < 2));
-                });
-                membersVBox.getChildren().add(checkBox);
+                userJoined(userID);
             }
             // Members scrollPane:
             ScrollPane membersScrollPane = new ScrollPane(membersVBox);
@@ -394,11 +635,18 @@ public class View extends Application {
                     Group newGroup = new Group(getSelectedClients(membersVBox), groupNameTextField.getText().trim());
                     send(newGroup);
                 }else{
-                    System.out.println("EditING group " + group);
-                    group.setClientIDs(getSelectedClients(membersVBox));
-                    group.setGroupName(groupNameTextField.getText().trim());
-                    System.out.println("EditED group " + group);
-                    send(group);
+                    // Only send what changed. Our copy is updated when the server sends the change back.
+                    List<Integer> selectedClients = getSelectedClients(membersVBox);
+                    List<Integer> addedIDs = new ArrayList<Integer>(selectedClients);
+                    addedIDs.removeAll(group.getClientIDs());
+                    List<Integer> removedIDs = new ArrayList<Integer>(group.getClientIDs());
+                    removedIDs.removeAll(selectedClients);
+                    String newGroupName = groupNameTextField.getText().trim();
+                    GroupDelta delta = new GroupDelta(group.getGroupID(), addedIDs, removedIDs, newGroupName.equals(group.getGroupName()) ? null : newGroupName);
+                    EventLog.debug("EditING group {}", delta);
+                    if(!delta.isEmpty()){
+                        send(delta);
+                    }
                 }
                 this.close();
             });
@@ -408,25 +656,57 @@ public class View extends Application {
             this.show();
         }
 
-        public void update(){ // Update the view to make it accurate with the list of registered users.
-            List<Integer> selectedClients = getSelectedClients(membersVBox);
-            Platform.runLater(() ->  membersVBox.getChildren().clear());// Clear old list. Update in new.
-            List<CheckBox> checkboxes = new ArrayList<CheckBox>(); // Instead of a Platform.runLater() for each client, do it all at the very end. Doing it for each client means it takes longer to render, but it STARTS rendering immediately. This way takes shorter to render, but you see nothing until it's all done.
-            for(Integer userID: client.registeredUsers){
-                CheckBox checkBox = new CheckBox(userID.toString());
-                checkBox.setSelected(selectedClients.contains(userID)); // If it was previously selected, restore that status. If you were mid-edit when someone left, you shouldn't have to restart.
-                if(userID == client.clientID && group == null){ // Creating a new group still means you must be in that group. You can't force other people in a group
-                    checkBox.setDisable(true);
+        // Adds a checkbox for a user who registered, in ID order. The others keep their checkboxes and whatever was
+        // ticked, so you don't have to restart if someone joins mid-edit. Called on the JavaFX thread.
+        public void userJoined(int userID){
+            if(checkBoxes.containsKey(userID)){
+                return;
+            }
+            CheckBox checkBox = new CheckBox(Integer.toString(userID)); // Default is unselected and enabled
+            if(userID == client.clientID){
+                checkBox.setSelected(true);
+                checkBox.setDisable(group == null); // When creating a group, I must be in that group. So, disable selecting myself if this is a new group.
+            }else if(group != null && group.getClientIDs().contains(userID)){ // This is someone else, and the group is not null so it has users and this user is one of them.
+                checkBox.setSelected(true);
+            }
+            checkBox.selectedProperty().addListener((ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> updateAddUsersButton());
+            int index = 0; // IDs are handed out in increasing order, so a new user almost always goes at the end.
+            for(int i = membersVBox.getChildren().size() - 1; i >= 0; i--){
+                if(Integer.parseInt(((CheckBox) membersVBox.getChildren().get(i)).getText()) < userID){
+                    index = i + 1;
+                    break;
                 }
-                checkBox.selectedProperty().addListener((ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> {
-                    Platform.runLater(() -> addUsersButton.setDisable(groupNameTextField.getText() == null || groupNameTextField.getText().trim().length() == 0 || getSelectedClients(membersVBox).size() < 2));
-                });
-                checkboxes.add(checkBox);
             }
-            Platform.runLater(() -> {
-                membersVBox.getChildren().addAll(checkboxes);
-                addUsersButton.setDisable(getSelectedClients(membersVBox).size() < 2);
-            }); // If someone left and that brought the selected users down below 2, disable the add button.
+            membersVBox.getChildren().add(index, checkBox);
+            checkBoxes.put(userID, checkBox);
+        }
+
+        // Takes away the checkbox of a user who left. If that brought the selected users down below 2, disables the add button.
+        public void userLeft(int userID){
+            CheckBox checkBox = checkBoxes.remove(userID);
+            if(checkBox != null){
+                membersVBox.getChildren().remove(checkBox);
+                updateAddUsersButton();
+            }
+        }
+
+        // Brings the checkboxes in line with the list of registered users after a presence snapshot, touching only
+        // the ones that changed. Called on the JavaFX thread.
+        public void update(){
+            Set<Integer> registered = new HashSet<Integer>(client.registeredUsers);
+            for(Integer userID : new ArrayList<Integer>(checkBoxes.keySet())){
+                if(!registered.contains(userID)){
+                    userLeft(userID);
+                }
+            }
+            for(Integer userID : client.registeredUsers){
+                userJoined(userID);
+            }
+            updateAddUsersButton();
+        }
+
+        private void updateAddUsersButton(){
+            addUsersButton.setDisable(groupNameTextField.getText() == null || groupNameTextField.getText().trim().length() == 0 || getSelectedClients(membersVBox).size() < 2);
         }
 
         private List<Integer> getSelectedClients(Pane pane){
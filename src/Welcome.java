@@ -0,0 +1,32 @@
+import java.io.Serializable;
+
+// The server's answer to a Hello: the client's ID and the token to resume it with next time. If resumed is true, he
+// has the same ID as before, so his groups are still his and he is still registered. Otherwise he is a new client.
+public class Welcome implements Serializable {
+    private int clientID;
+    private String sessionToken;
+    private boolean resumed;
+
+    public Welcome(int clientID, String sessionToken, boolean resumed) {
+        this.clientID = clientID;
+        this.sessionToken = sessionToken;
+        this.resumed = resumed;
+    }
+
+    public int getClientID() {
+        return clientID;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public String toString(){
+        return "Welcome " + (resumed ? "back " : "") + "client " + clientID;
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns the objects the client and server exchange into frame bodies and back. Which codec a connection uses is agreed
+// when it opens: the client sends a hello listing the codecs it speaks, best first, and the server answers with the
+// one it picked. Every frame after that uses the picked codec.
+public abstract class WireCodec {
+    public static final int HELLO_MAGIC = 0x43484154; // "CHAT"
+    public static final WireCodec JAVA = new JavaCodec();
+    public static final WireCodec BINARY = new BinaryCodec();
+
+    private final byte id;
+
+    protected WireCodec(int id){
+        this.id = (byte) id;
+    }
+
+    public byte getID(){
+        return id;
+    }
+
+    // Encodes a frame body.
+    public byte[] encode(Object object) throws IOException {
+        return encode(object, 0);
+    }
+
+    // Encodes a whole frame: the 4 byte length and then the body, in one array, so it can be written to any number of
+    // clients as is. Room for the length is left at the front so the body is never copied just to prepend it.
+    public byte[] encodeFrame(Object object) throws IOException {
+        byte[] frame = encode(object, 4);
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    private byte[] encode(Object object, int headerRoom) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(headerRoom + estimateSize(object));
+        for(int i = 0; i < headerRoom; i++){
+            byteArrayOutputStream.write(0);
+        }
+        write(object, byteArrayOutputStream);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    // Sizes the output buffer up front so attachment frames aren't copied over and over as it grows.
+    private static int estimateSize(Object object){
+        return object instanceof AttachmentData ? 128 + ((AttachmentData) object).getBytes().length : 64;
+    }
+
+    protected abstract void write(Object object, OutputStream outputStream) throws IOException;
+
+    public abstract Object decode(byte[] body, int offset, int length) throws IOException;
+
+    public static WireCodec fromID(int id){
+        if(id == JAVA.id){
+            return JAVA;
+        }else if (id == BINARY.id){
+            return BINARY;
+        }
+        return null;
+    }
+
+    // The codecs a client asks for unless started with -Dchat.codec=java.
+    public static WireCodec[] preferred(){
+        return System.getProperty("chat.codec", "binary").equalsIgnoreCase("java") ? new WireCodec[]{JAVA} : new WireCodec[]{BINARY, JAVA};
+    }
+
+    // Client side of the handshake. Sends the hello and returns the codec the server picked.
+    public static WireCodec negotiate(DataOutputStream outputStream, DataInputStream inputStream, WireCodec... codecs) throws IOException {
+        outputStream.writeInt(HELLO_MAGIC);
+        outputStream.writeByte(codecs.length);
+        for(WireCodec codec : codecs){
+            outputStream.writeByte(codec.id);
+        }
+        outputStream.flush();
+        WireCodec chosen = fromID(inputStream.readByte());
+        if(chosen == null){
+            throw new IOException("Server picked a codec we don't speak");
+        }
+        return chosen;
+    }
+
+    // Server side of the handshake, for the blocking engine. Reads the hello and answers with the codec to use.
+    public static WireCodec accept(DataInputStream inputStream, DataOutputStream outputStream) throws IOException {
+        if(inputStream.readInt() != HELLO_MAGIC){
+            throw new IOException("Client did not say hello");
+        }
+        int count = inputStream.readUnsignedByte();
+        byte[] offered = new byte[count];
+        inputStream.readFully(offered);
+        WireCodec chosen = choose(offered);
+        outputStream.writeByte(chosen.id);
+        outputStream.flush();
+        return chosen;
+    }
+
+    // Server side of the handshake, for the NIO engine. Returns null if the whole hello hasn't arrived yet, otherwise
+    // consumes it from the buffer and returns the codec to use.
+    public static WireCodec accept(ByteBuffer buffer) throws IOException {
+        if(buffer.remaining() < 5){
+            return null;
+        }
+        if(buffer.getInt(buffer.position()) != HELLO_MAGIC){
+            throw new IOException("Client did not say hello");
+        }
+        int count = buffer.get(buffer.position() + 4) & 0xFF;
+        if(buffer.remaining() < 5 + count){
+            return null;
+        }
+        buffer.position(buffer.position() + 5);
+        byte[] offered = new byte[count];
+        buffer.get(offered);
+        return choose(offered);
+    }
+
+    private static WireCodec choose(byte[] offered){
+        for(byte id : offered){
+            WireCodec codec = fromID(id);
+            if(codec != null){
+                return codec;
+            }
+        }
+        return JAVA; // Oldest codec. Every client understands it.
+    }
+
+    // Plain Java serialization. Simple, but every frame repeats the class descriptors of everything in it.
+    static class JavaCodec extends WireCodec {
+        JavaCodec(){
+            super(0);
+        }
+
+        @Override
+        protected void write(Object object, OutputStream outputStream) throws IOException {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+            objectOutputStream.writeObject(object);
+            objectOutputStream.flush();
+        }
+
+        @Override
+        public Object decode(byte[] body, int offset, int length) throws IOException {
+            ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(body, offset, length));
+            try {
+                return objectInputStream.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown class in frame", e);
+            }
+        }
+    }
+
+    // Hand-written codec for the payloads the protocol carries. One tag byte says what follows, then only the field
+    // values: no class descriptors and no reflection. Strings are UTF-8 with a length in front. A length of -1 means null.
+    static class BinaryCodec extends WireCodec {
+        static final byte CLIENT_ID = 1;
+        static final byte USER_LIST = 2;
+        static final byte GROUP = 3;
+        static final byte MESSAGE = 4;
+        static final byte GROUP_DELTA = 5;
+        static final byte ATTACHMENT_DATA = 6;
+        static final byte ATTACHMENT_REQUEST = 7;
+        static final byte HISTORY_REQUEST = 8;
+        static final byte HISTORY_PAGE = 9;
+        static final byte PRESENCE_DELTA = 10;
+        static final byte PRESENCE_SNAPSHOT = 11;
+        static final byte PRESENCE_REQUEST = 12;
+        static final byte HELLO = 13;
+        static final byte WELCOME = 14;
+        private static final int MIN_MESSAGE_BYTES = 4 + 4 + 8 + 4 + 4; // Group, sender, sequence, text length, attachment count.
+        private static final int MIN_ATTACHMENT_BYTES = 4 + 4 + 4; // Hash length, size, file type length.
+
+        BinaryCodec(){
+            super(1);
+        }
+
+        @Override
+        protected void write(Object object, OutputStream out) throws IOException {
+            DataOutputStream outputStream = new DataOutputStream(out);
+            if(object instanceof Integer){
+                outputStream.writeByte(CLIENT_ID);
+                outputStream.writeInt((Integer) object);
+            }else if (object instanceof List){
+                outputStream.writeByte(USER_LIST);
+                writeInts(outputStream, (List<?>) object);
+            }else if (object instanceof Group){
+                outputStream.writeByte(GROUP);
+                writeGroup(outputStream, (Group) object);
+            }else if (object instanceof Message){
+                outputStream.writeByte(MESSAGE);
+                writeMessage(outputStream, (Message) object);
+            }else if (object instanceof GroupDelta){
+                outputStream.writeByte(GROUP_DELTA);
+                writeGroupDelta(outputStream, (GroupDelta) object);
+            }else if (object instanceof AttachmentData){
+                outputStream.writeByte(ATTACHMENT_DATA);
+                writeString(outputStream, ((AttachmentData) object).getHash());
+                outputStream.writeInt(((AttachmentData) object).getBytes().length);
+                outputStream.write(((AttachmentData) object).getBytes());
+            }else if (object instanceof AttachmentRequest){
+                outputStream.writeByte(ATTACHMENT_REQUEST);
+                writeString(outputStream, ((AttachmentRequest) object).getHash());
+            }else if (object instanceof HistoryRequest){
+                HistoryRequest request = (HistoryRequest) object;
+                outputStream.writeByte(HISTORY_REQUEST);
+                outputStream.writeInt(request.getGroupID());
+                outputStream.writeLong(request.getCursor());
+                outputStream.writeBoolean(request.isOlder());
+                outputStream.writeInt(request.getLimit());
+            }else if (object instanceof HistoryPage){
+                HistoryPage page = (HistoryPage) object;
+                outputStream.writeByte(HISTORY_PAGE);
+                outputStream.writeInt(page.getGroupID());
+                outputStream.writeLong(page.getCursor());
+                outputStream.writeBoolean(page.isOlder());
+                outputStream.writeBoolean(page.isComplete());
+                outputStream.writeInt(page.getMessages().size());
+                for(Message message : page.getMessages()){
+                    writeMessage(outputStream, message);
+                }
+            }else if (object instanceof PresenceDelta){
+                PresenceDelta delta = (PresenceDelta) object;
+                outputStream.writeByte(PRESENCE_DELTA);
+                outputStream.writeLong(delta.getVersion());
+                outputStream.writeInt(delta.getClientID());
+                outputStream.writeBoolean(delta.isJoined());
+            }else if (object instanceof PresenceSnapshot){
+                outputStream.writeByte(PRESENCE_SNAPSHOT);
+                outputStream.writeLong(((PresenceSnapshot) object).getVersion());
+                writeInts(outputStream, ((PresenceSnapshot) object).getUsers());
+            }else if (object instanceof PresenceRequest){
+                outputStream.writeByte(PRESENCE_REQUEST);
+            }else if (object instanceof Hello){
+                outputStream.writeByte(HELLO);
+                writeString(outputStream, ((Hello) object).getSessionToken());
+            }else if (object instanceof Welcome){
+                Welcome welcome = (Welcome) object;
+                outputStream.writeByte(WELCOME);
+                outputStream.writeInt(welcome.getClientID());
+                writeString(outputStream, welcome.getSessionToken());
+                outputStream.writeBoolean(welcome.isResumed());
+            }else{
+                throw new IOException("Binary codec can't encode " + object.getClass().getName());
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public Object decode(byte[] body, int offset, int length) throws IOException {
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+            byte tag = inputStream.readByte();
+            switch (tag){
+                case CLIENT_ID:
+                    return inputStream.readInt();
+                case USER_LIST:
+                    return readInts(inputStream);
+                case GROUP:
+                    return readGroup(inputStream);
+                case MESSAGE:
+                    return readMessage(inputStream);
+                case GROUP_DELTA:
+                    return readGroupDelta(inputStream);
+                case ATTACHMENT_DATA:
+                    String hash = readString(inputStream);
+                    byte[] bytes = new byte[readLength(inputStream, 1)];
+                    inputStream.readFully(bytes);
+                    return new AttachmentData(hash, bytes);
+                case ATTACHMENT_REQUEST:
+                    return new AttachmentRequest(readString(inputStream));
+                case HISTORY_REQUEST:
+                    return new HistoryRequest(inputStream.readInt(), inputStream.readLong(), inputStream.readBoolean(), inputStream.readInt());
+                case HISTORY_PAGE:
+                    return readHistoryPage(inputStream);
+                case PRESENCE_DELTA:
+                    return new PresenceDelta(inputStream.readLong(), inputStream.readInt(), inputStream.readBoolean());
+                case PRESENCE_SNAPSHOT:
+                    return new PresenceSnapshot(inputStream.readLong(), readInts(inputStream));
+                case PRESENCE_REQUEST:
+                    return new PresenceRequest();
+                case HELLO:
+                    return new Hello(readString(inputStream));
+                case WELCOME:
+                    return new Welcome(inputStream.readInt(), readString(inputStream), inputStream.readBoolean());
+                default:
+                    throw new IOException("Unknown frame tag " + tag);
+            }
+        }
+
+        static void writeGroup(DataOutputStream outputStream, Group group) throws IOException {
+            outputStream.writeInt(group.getGroupID());
+            writeString(outputStream, group.getGroupName());
+            writeInts(outputStream, group.getClientIDs());
+            outputStream.writeInt(group.getMessages().size());
+            for(Message message : group.getMessages()){
+                writeMessage(outputStream, message);
+            }
+        }
+
+        static Group readGroup(DataInputStream inputStream) throws IOException {
+            int groupID = inputStream.readInt();
+            String groupName = readString(inputStream);
+            Group group = new Group(readInts(inputStream), groupName);
+            group.setGroupID(groupID);
+            int messageCount = readLength(inputStream, MIN_MESSAGE_BYTES);
+            for(int i = 0; i < messageCount; i++){
+                group.addMessage(readMessage(inputStream));
+            }
+            return group;
+        }
+
+        static void writeGroupDelta(DataOutputStream outputStream, GroupDelta delta) throws IOException {
+            outputStream.writeInt(delta.getGroupID());
+            writeInts(outputStream, delta.getAddedIDs());
+            writeInts(outputStream, delta.getRemovedIDs());
+            writeString(outputStream, delta.getNewGroupName());
+        }
+
+        static GroupDelta readGroupDelta(DataInputStream inputStream) throws IOException {
+            int groupID = inputStream.readInt();
+            List<Integer> addedIDs = readInts(inputStream);
+            List<Integer> removedIDs = readInts(inputStream);
+            return new GroupDelta(groupID, addedIDs, removedIDs, readString(inputStream));
+        }
+
+        static void writeMessage(DataOutputStream outputStream, Message message) throws IOException {
+            outputStream.writeInt(message.getIntendedGroupID());
+            outputStream.writeInt(message.getSenderID());
+            outputStream.writeLong(message.getSequence());
+            writeString(outputStream, message.getMessage());
+            List<Attachment> attachments = message.getAttachments();
+            outputStream.writeInt(attachments == null ? -1 : attachments.size());
+            if(attachments != null){
+                for(Attachment attachment : attachments){
+                    writeString(outputStream, attachment.getHash());
+                    outputStream.writeInt(attachment.getSize());
+                    writeString(outputStream, attachment.getFileType());
+                }
+            }
+        }
+
+        static Message readMessage(DataInputStream inputStream) throws IOException {
+            int intendedGroupID = inputStream.readInt();
+            int senderID = inputStream.readInt();
+            long sequence = inputStream.readLong();
+            String text = readString(inputStream);
+            int attachmentCount = inputStream.readInt();
+            List<Attachment> attachments = null;
+            if(attachmentCount != -1){ // -1 for none at all.
+                checkLength(inputStream, attachmentCount, MIN_ATTACHMENT_BYTES);
+                attachments = new ArrayList<Attachment>(attachmentCount);
+                for(int i = 0; i < attachmentCount; i++){
+                    String hash = readString(inputStream);
+                    int size = inputStream.readInt();
+                    attachments.add(new Attachment(hash, size, readString(inputStream)));
+                }
+            }
+            Message message = new Message(intendedGroupID, senderID, text, attachments);
+            message.setSequence(sequence);
+            return message;
+        }
+
+        static HistoryPage readHistoryPage(DataInputStream inputStream) throws IOException {
+            int groupID = inputStream.readInt();
+            long cursor = inputStream.readLong();
+            boolean older = inputStream.readBoolean();
+            boolean complete = inputStream.readBoolean();
+            int count = readLength(inputStream, MIN_MESSAGE_BYTES);
+            List<Message> messages = new ArrayList<Message>(count);
+            for(int i = 0; i < count; i++){
+                messages.add(readMessage(inputStream));
+            }
+            return new HistoryPage(groupID, cursor, older, messages, complete);
+        }
+
+        static void writeInts(DataOutputStream outputStream, List<?> ints) throws IOException {
+            outputStream.writeInt(ints.size());
+            for(Object value : ints){
+                outputStream.writeInt((Integer) value);
+            }
+        }
+
+        static List<Integer> readInts(DataInputStream inputStream) throws IOException {
+            int count = readLength(inputStream, 4);
+            List<Integer> ints = new ArrayList<Integer>(count);
+            for(int i = 0; i < count; i++){
+                ints.add(inputStream.readInt());
+            }
+            return ints;
+        }
+
+        static void writeString(DataOutputStream outputStream, String string) throws IOException {
+            if(string == null){
+                outputStream.writeInt(-1);
+                return;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            outputStream.writeInt(bytes.length);
+            outputStream.write(bytes);
+        }
+
+        // Reads a count or length and checks it, so a bad one fails the frame instead of allocating a huge array.
+        static int readLength(DataInputStream inputStream, int minBytesEach) throws IOException {
+            int length = inputStream.readInt();
+            checkLength(inputStream, length, minBytesEach);
+            return length;
+        }
+
+        // A length is only believable if that many items, at their smallest, fit in what is left of the frame (or file:
+        // LocalStore reads groups with these too, and a file stream knows what is left as well).
+        static void checkLength(DataInputStream inputStream, int length, int minBytesEach) throws IOException {
+            if(length < 0){
+                throw new IOException("Bad length " + length);
+            }
+            int left = inputStream.available();
+            if((long) length * minBytesEach > left){
+                throw new EOFException("Length " + length + " but only " + left + " bytes left");
+            }
+        }
+
+        static String readString(DataInputStream inputStream) throws IOException {
+            int length = inputStream.readInt();
+            if(length == -1){
+                return null;
+            }
+            checkLength(inputStream, length, 1);
+            byte[] bytes = new byte[length];
+            inputStream.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}